@@ -0,0 +1,17 @@
+package android.util;
+
+/**
+ * The part of the Android logger the host build needs, printing to stderr
+ */
+public final class Log {
+
+	private Log() {
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		System.err.println("W/" + tag + ": " + msg);
+		if (tr != null)
+			tr.printStackTrace();
+		return 0;
+	}
+}
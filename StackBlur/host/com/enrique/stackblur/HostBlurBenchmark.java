@@ -0,0 +1,103 @@
+package com.enrique.stackblur;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the Java stack blur kernel with the native one on a desktop JVM.
+ * Run it with {@code gradle :StackBlur:hostBenchmark}.
+ * <p/>
+ * Arguments: width height radius iterations threads
+ */
+public class HostBlurBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int w = args.length > 0 ? Integer.parseInt(args[0]) : 2048;
+		int h = args.length > 1 ? Integer.parseInt(args[1]) : 1536;
+		int radius = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+		int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+		int[] argb = new int[w * h];
+		Random random = new Random(42);
+		for (int i = 0; i < argb.length; i++)
+			argb[i] = 0xff000000 | random.nextInt(0x1000000);
+
+		ByteBuffer rgba = ByteBuffer.allocateDirect(w * h * 4);
+		int[] work = new int[w * h];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		System.out.println(w + "x" + h + " radius " + radius + ", " + threads + " threads");
+		try {
+			// the first half of the iterations is warm-up for the JIT
+			long java = 0, nativeTime = 0;
+			for (int i = 0; i < iterations * 2; i++) {
+				System.arraycopy(argb, 0, work, 0, argb.length);
+				long start = System.nanoTime();
+				javaBlur(executor, work, w, h, radius, threads);
+				if (i >= iterations) java += System.nanoTime() - start;
+
+				fill(rgba, argb);
+				start = System.nanoTime();
+				NativeBufferBlur.stackBlur(rgba, w, h, w * 4, false, radius, threads);
+				if (i >= iterations) nativeTime += System.nanoTime() - start;
+			}
+			report("java  ", java, w, h, iterations);
+			report("native", nativeTime, w, h, iterations);
+			System.out.println("max channel difference: " + maxDifference(work, rgba));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void javaBlur(ExecutorService executor, final int[] pixels, final int w, final int h,
+	                             final int radius, final int threads) throws InterruptedException {
+		for (int step = 1; step <= 2; step++) {
+			ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(threads);
+			for (int i = 0; i < threads; i++) {
+				final int core = i;
+				final int round = step;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						StackBlurKernel.blurIteration(pixels, w, h, radius, threads, core, round);
+						return null;
+					}
+				});
+			}
+			executor.invokeAll(tasks);
+		}
+	}
+
+	private static void fill(ByteBuffer rgba, int[] argb) {
+		rgba.clear();
+		for (int p : argb) {
+			rgba.put((byte) (p >> 16));
+			rgba.put((byte) (p >> 8));
+			rgba.put((byte) p);
+			rgba.put((byte) (p >>> 24));
+		}
+		rgba.clear();
+	}
+
+	private static int maxDifference(int[] argb, ByteBuffer rgba) {
+		int max = 0;
+		for (int i = 0; i < argb.length; i++) {
+			int p = argb[i];
+			max = Math.max(max, Math.abs(((p >> 16) & 0xff) - (rgba.get(i * 4) & 0xff)));
+			max = Math.max(max, Math.abs(((p >> 8) & 0xff) - (rgba.get(i * 4 + 1) & 0xff)));
+			max = Math.max(max, Math.abs((p & 0xff) - (rgba.get(i * 4 + 2) & 0xff)));
+		}
+		return max;
+	}
+
+	private static void report(String name, long nanos, int w, int h, int iterations) {
+		double ms = nanos / 1e6 / iterations;
+		double mps = (double) w * h / 1e6 / (ms / 1000);
+		System.out.println(String.format("%s %8.2f ms/blur %8.1f MP/s", name, ms, mps));
+	}
+}
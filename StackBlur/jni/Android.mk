@@ -7,12 +7,24 @@ include $(CLEAR_VARS)
 LOCAL_LDLIBS    := -llog -ljnigraphics
  
 LOCAL_MODULE    := blur
-LOCAL_SRC_FILES := blur.c
+LOCAL_SRC_FILES := blur.c blur_core.c blur_buffer.c
  
 LOCAL_CFLAGS    =  -ffast-math -O3 -funroll-loops
+
+# NEON is optional on armeabi-v7a: only the SIMD kernels are built with it,
+# blur_core.c checks the CPU before using them
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_SRC_FILES += blur_simd.c.neon
+LOCAL_CFLAGS += -DBLUR_ARM_NEON
+LOCAL_STATIC_LIBRARIES := cpufeatures
+else
+LOCAL_SRC_FILES += blur_simd.c
+endif
  
 include $(BUILD_SHARED_LIBRARY)
 
+$(call import-module,android/cpufeatures)
+
 # Renderscript support library is not available for ARM before v7a currently
 #ifneq ($(TARGET_ARCH_ABI),armeabi)
 	# Add prebuilts for Renderscript Support
@@ -0,0 +1,22 @@
+#include <jni.h>
+#include "blur_core.h"
+
+// JNI binding on a direct ByteBuffer of RGBA_8888 pixels. It only needs
+// blur_core.c, so it is also built for the desktop (see the hostNativeLib task).
+
+JNIEXPORT void JNICALL Java_com_enrique_stackblur_NativeBufferBlur_nativeBlurBuffer(JNIEnv* env, jclass clzz, jobject buffer, jint width, jint height, jint stride, jint type, jboolean hasAlpha, jint radius1, jint radius2, jint radius3, jint threadCount) {
+    int radii[3] = { radius1, radius2, radius3 };
+    unsigned char* pixels = (unsigned char*)(*env)->GetDirectBufferAddress(env, buffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, buffer);
+
+    if (pixels == NULL || capacity < 0) {
+        (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "buffer is not direct");
+        return;
+    }
+    if (width <= 0 || height <= 0 || stride < width * 4 || capacity < (jlong)stride * (height - 1) + width * 4) {
+        (*env)->ThrowNew(env, (*env)->FindClass(env, "java/lang/IllegalArgumentException"), "buffer too small for width, height and stride");
+        return;
+    }
+
+    blurRun(pixels, width, height, stride, type, hasAlpha, radii, threadCount);
+}
@@ -0,0 +1,683 @@
+#include <stdlib.h>
+#include <stdint.h>
+#include <pthread.h>
+#include "blur_core.h"
+#include "blur_simd.h"
+
+#if defined(__arm__) && defined(__ANDROID__) && BLUR_SIMD_NEON
+#include <cpu-features.h>
+#endif
+
+#define clamp(a,min,max) \
+    ({__typeof__ (a) _a__ = (a); \
+      __typeof__ (min) _min__ = (min); \
+      __typeof__ (max) _max__ = (max); \
+      _a__ < _min__ ? _min__ : _a__ > _max__ ? _max__ : _a__; })
+
+// Based heavily on http://vitiy.info/Code/stackblur.cpp
+// See http://vitiy.info/stackblur-algorithm-multi-threaded-blur-for-cpp/
+// Stack Blur Algorithm by Mario Klingemann <mario@quasimondo.com>
+
+static unsigned short const stackblur_mul[255] =
+{
+        512,512,456,512,328,456,335,512,405,328,271,456,388,335,292,512,
+        454,405,364,328,298,271,496,456,420,388,360,335,312,292,273,512,
+        482,454,428,405,383,364,345,328,312,298,284,271,259,496,475,456,
+        437,420,404,388,374,360,347,335,323,312,302,292,282,273,265,512,
+        497,482,468,454,441,428,417,405,394,383,373,364,354,345,337,328,
+        320,312,305,298,291,284,278,271,265,259,507,496,485,475,465,456,
+        446,437,428,420,412,404,396,388,381,374,367,360,354,347,341,335,
+        329,323,318,312,307,302,297,292,287,282,278,273,269,265,261,512,
+        505,497,489,482,475,468,461,454,447,441,435,428,422,417,411,405,
+        399,394,389,383,378,373,368,364,359,354,350,345,341,337,332,328,
+        324,320,316,312,309,305,301,298,294,291,287,284,281,278,274,271,
+        268,265,262,259,257,507,501,496,491,485,480,475,470,465,460,456,
+        451,446,442,437,433,428,424,420,416,412,408,404,400,396,392,388,
+        385,381,377,374,370,367,363,360,357,354,350,347,344,341,338,335,
+        332,329,326,323,320,318,315,312,310,307,304,302,299,297,294,292,
+        289,287,285,282,280,278,275,273,271,269,267,265,263,261,259
+};
+
+static unsigned char const stackblur_shr[255] =
+{
+        9, 11, 12, 13, 13, 14, 14, 15, 15, 15, 15, 16, 16, 16, 16, 17,
+        17, 17, 17, 17, 17, 17, 18, 18, 18, 18, 18, 18, 18, 18, 18, 19,
+        19, 19, 19, 19, 19, 19, 19, 19, 19, 19, 19, 19, 19, 20, 20, 20,
+        20, 20, 20, 20, 20, 20, 20, 20, 20, 20, 20, 20, 20, 20, 20, 21,
+        21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 21,
+        21, 21, 21, 21, 21, 21, 21, 21, 21, 21, 22, 22, 22, 22, 22, 22,
+        22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22,
+        22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 22, 23,
+        23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23,
+        23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23,
+        23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23, 23,
+        23, 23, 23, 23, 23, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24,
+        24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24,
+        24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24,
+        24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24,
+        24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24, 24
+};
+
+// Vectorized line kernel picked for this CPU by selectKernels, NULL for the scalar one
+static stackblur_lines_fn stackblur_lines = NULL;
+static const char* stackblur_kernel = "scalar";
+static pthread_once_t kernels_once = PTHREAD_ONCE_INIT;
+
+static void selectKernels(void)
+{
+#ifndef BLUR_NO_SIMD
+#if BLUR_SIMD_X86
+    __builtin_cpu_init();
+    if (__builtin_cpu_supports("avx2"))
+    {
+        stackblur_lines = stackblurLinesAvx2;
+        stackblur_kernel = "avx2";
+    }
+    else if (__builtin_cpu_supports("sse4.1"))
+    {
+        stackblur_lines = stackblurLinesSse41;
+        stackblur_kernel = "sse4.1";
+    }
+#elif BLUR_SIMD_NEON
+#if defined(__arm__) && defined(__ANDROID__)
+    if (android_getCpuFamily() == ANDROID_CPU_FAMILY_ARM &&
+        (android_getCpuFeatures() & ANDROID_CPU_ARM_FEATURE_NEON))
+#endif
+    {
+        stackblur_lines = stackblurLinesNeon;
+        stackblur_kernel = "neon";
+    }
+#endif
+#endif
+    LOGI("stack blur kernel: %s", stackblur_kernel);
+}
+
+const char* blurKernelName(void)
+{
+    pthread_once(&kernels_once, selectKernels);
+    return stackblur_kernel;
+}
+
+/// Stackblur algorithm body. It is inlined with a constant has_alpha so that
+/// opaque images get a kernel without any alpha work.
+static inline __attribute__((always_inline)) void stackblurJob(unsigned char* src, ///< input image data
+                  unsigned int w,                    ///< image width
+                  unsigned int h,                    ///< image height
+                  unsigned int stride,               ///< bytes per row
+                  unsigned int radius,               ///< blur intensity (should be in 2..254 range)
+                  int cores,                         ///< total number of working threads
+                  int core,                          ///< current thread number
+                  int step,                          ///< step of processing (1,2)
+                  int has_alpha                      ///< blur alpha and keep colors premultiplied
+                  )
+{
+    unsigned int x, y, xp, yp, i;
+    unsigned int sp;
+    unsigned int stack_start;
+    unsigned char* stack_ptr;
+
+    unsigned char* src_ptr;
+    unsigned char* dst_ptr;
+
+    unsigned long sum_a;
+    unsigned long sum_r;
+    unsigned long sum_g;
+    unsigned long sum_b;
+    unsigned long sum_in_a;
+    unsigned long sum_in_r;
+    unsigned long sum_in_g;
+    unsigned long sum_in_b;
+    unsigned long sum_out_a;
+    unsigned long sum_out_r;
+    unsigned long sum_out_g;
+    unsigned long sum_out_b;
+
+    unsigned int wm = w - 1;
+    unsigned int hm = h - 1;
+    unsigned int w4 = stride;
+    unsigned int div = (radius * 2) + 1;
+    unsigned int mul_sum = stackblur_mul[radius];
+    unsigned char shr_sum = stackblur_shr[radius];
+    unsigned char stack[div * 4];
+
+    if (stackblur_lines != NULL)
+    {
+        if (step == 1)
+            stackblur_lines(src, core * h / cores, (core + 1) * h / cores, w4, w, 4, radius, mul_sum, shr_sum, has_alpha);
+        else
+            stackblur_lines(src, core * w / cores, (core + 1) * w / cores, 4, h, w4, radius, mul_sum, shr_sum, has_alpha);
+        return;
+    }
+
+    if (step == 1)
+    {
+        int minY = core * h / cores;
+        int maxY = (core + 1) * h / cores;
+
+        for(y = minY; y < maxY; y++)
+        {
+            sum_a = sum_r = sum_g = sum_b =
+            sum_in_a = sum_in_r = sum_in_g = sum_in_b =
+            sum_out_a = sum_out_r = sum_out_g = sum_out_b = 0;
+
+            src_ptr = src + w4 * y; // start of line (0,y)
+
+            for(i = 0; i <= radius; i++)
+            {
+                stack_ptr    = &stack[ 4 * i ];
+                stack_ptr[0] = src_ptr[0];
+                stack_ptr[1] = src_ptr[1];
+                stack_ptr[2] = src_ptr[2];
+                if (has_alpha) stack_ptr[3] = src_ptr[3];
+                sum_r += src_ptr[0] * (i + 1);
+                sum_g += src_ptr[1] * (i + 1);
+                sum_b += src_ptr[2] * (i + 1);
+                if (has_alpha) sum_a += src_ptr[3] * (i + 1);
+                sum_out_r += src_ptr[0];
+                sum_out_g += src_ptr[1];
+                sum_out_b += src_ptr[2];
+                if (has_alpha) sum_out_a += src_ptr[3];
+            }
+
+
+            for(i = 1; i <= radius; i++)
+            {
+                if (i <= wm) src_ptr += 4;
+                stack_ptr = &stack[ 4 * (i + radius) ];
+                stack_ptr[0] = src_ptr[0];
+                stack_ptr[1] = src_ptr[1];
+                stack_ptr[2] = src_ptr[2];
+                if (has_alpha) stack_ptr[3] = src_ptr[3];
+                sum_r += src_ptr[0] * (radius + 1 - i);
+                sum_g += src_ptr[1] * (radius + 1 - i);
+                sum_b += src_ptr[2] * (radius + 1 - i);
+                if (has_alpha) sum_a += src_ptr[3] * (radius + 1 - i);
+                sum_in_r += src_ptr[0];
+                sum_in_g += src_ptr[1];
+                sum_in_b += src_ptr[2];
+                if (has_alpha) sum_in_a += src_ptr[3];
+            }
+
+
+            sp = radius;
+            xp = radius;
+            if (xp > wm) xp = wm;
+            src_ptr = src + 4 * xp + y * w4; //   img.pix_ptr(xp, y);
+            dst_ptr = src + y * w4; // img.pix_ptr(0, y);
+            for(x = 0; x < w; x++)
+            {
+                if (has_alpha)
+                {
+                    int alpha = (sum_a * mul_sum) >> shr_sum;
+                    dst_ptr[3] = alpha;
+                    dst_ptr[0] = clamp((sum_r * mul_sum) >> shr_sum, 0, alpha);
+                    dst_ptr[1] = clamp((sum_g * mul_sum) >> shr_sum, 0, alpha);
+                    dst_ptr[2] = clamp((sum_b * mul_sum) >> shr_sum, 0, alpha);
+                }
+                else
+                {
+                    dst_ptr[0] = (sum_r * mul_sum) >> shr_sum;
+                    dst_ptr[1] = (sum_g * mul_sum) >> shr_sum;
+                    dst_ptr[2] = (sum_b * mul_sum) >> shr_sum;
+                }
+                dst_ptr += 4;
+
+                sum_r -= sum_out_r;
+                sum_g -= sum_out_g;
+                sum_b -= sum_out_b;
+                if (has_alpha) sum_a -= sum_out_a;
+
+                stack_start = sp + div - radius;
+                if (stack_start >= div) stack_start -= div;
+                stack_ptr = &stack[4 * stack_start];
+
+                sum_out_r -= stack_ptr[0];
+                sum_out_g -= stack_ptr[1];
+                sum_out_b -= stack_ptr[2];
+                if (has_alpha) sum_out_a -= stack_ptr[3];
+
+                if(xp < wm)
+                {
+                    src_ptr += 4;
+                    ++xp;
+                }
+
+                stack_ptr[0] = src_ptr[0];
+                stack_ptr[1] = src_ptr[1];
+                stack_ptr[2] = src_ptr[2];
+                if (has_alpha) stack_ptr[3] = src_ptr[3];
+
+                sum_in_r += src_ptr[0];
+                sum_in_g += src_ptr[1];
+                sum_in_b += src_ptr[2];
+                if (has_alpha) sum_in_a += src_ptr[3];
+                sum_r    += sum_in_r;
+                sum_g    += sum_in_g;
+                sum_b    += sum_in_b;
+                if (has_alpha) sum_a += sum_in_a;
+
+                ++sp;
+                if (sp >= div) sp = 0;
+                stack_ptr = &stack[sp*4];
+
+                sum_out_r += stack_ptr[0];
+                sum_out_g += stack_ptr[1];
+                sum_out_b += stack_ptr[2];
+                if (has_alpha) sum_out_a += stack_ptr[3];
+                sum_in_r  -= stack_ptr[0];
+                sum_in_g  -= stack_ptr[1];
+                sum_in_b  -= stack_ptr[2];
+                if (has_alpha) sum_in_a -= stack_ptr[3];
+            }
+
+        }
+    }
+
+    // step 2
+    if (step == 2)
+    {
+        int minX = core * w / cores;
+        int maxX = (core + 1) * w / cores;
+
+        for(x = minX; x < maxX; x++)
+        {
+            sum_a = sum_r =    sum_g =    sum_b =
+            sum_in_a = sum_in_r = sum_in_g = sum_in_b =
+            sum_out_a = sum_out_r = sum_out_g = sum_out_b = 0;
+
+            src_ptr = src + 4 * x; // x,0
+            for(i = 0; i <= radius; i++)
+            {
+                stack_ptr    = &stack[i * 4];
+                stack_ptr[0] = src_ptr[0];
+                stack_ptr[1] = src_ptr[1];
+                stack_ptr[2] = src_ptr[2];
+                if (has_alpha) stack_ptr[3] = src_ptr[3];
+                sum_r           += src_ptr[0] * (i + 1);
+                sum_g           += src_ptr[1] * (i + 1);
+                sum_b           += src_ptr[2] * (i + 1);
+                if (has_alpha) sum_a += src_ptr[3] * (i + 1);
+                sum_out_r       += src_ptr[0];
+                sum_out_g       += src_ptr[1];
+                sum_out_b       += src_ptr[2];
+                if (has_alpha) sum_out_a += src_ptr[3];
+            }
+            for(i = 1; i <= radius; i++)
+            {
+                if(i <= hm) src_ptr += w4; // +stride
+
+                stack_ptr = &stack[4 * (i + radius)];
+                stack_ptr[0] = src_ptr[0];
+                stack_ptr[1] = src_ptr[1];
+                stack_ptr[2] = src_ptr[2];
+                if (has_alpha) stack_ptr[3] = src_ptr[3];
+                sum_r += src_ptr[0] * (radius + 1 - i);
+                sum_g += src_ptr[1] * (radius + 1 - i);
+                sum_b += src_ptr[2] * (radius + 1 - i);
+                if (has_alpha) sum_a += src_ptr[3] * (radius + 1 - i);
+                sum_in_r += src_ptr[0];
+                sum_in_g += src_ptr[1];
+                sum_in_b += src_ptr[2];
+                if (has_alpha) sum_in_a += src_ptr[3];
+            }
+
+            sp = radius;
+            yp = radius;
+            if (yp > hm) yp = hm;
+            src_ptr = src + 4 * x + yp * w4; // img.pix_ptr(x, yp);
+            dst_ptr = src + 4 * x;               // img.pix_ptr(x, 0);
+            for(y = 0; y < h; y++)
+            {
+
+
+                if (has_alpha)
+                {
+                    int alpha = (sum_a * mul_sum) >> shr_sum;
+                    dst_ptr[3] = alpha;
+                    dst_ptr[0] = clamp((sum_r * mul_sum) >> shr_sum, 0, alpha);
+                    dst_ptr[1] = clamp((sum_g * mul_sum) >> shr_sum, 0, alpha);
+                    dst_ptr[2] = clamp((sum_b * mul_sum) >> shr_sum, 0, alpha);
+                }
+                else
+                {
+                    dst_ptr[0] = (sum_r * mul_sum) >> shr_sum;
+                    dst_ptr[1] = (sum_g * mul_sum) >> shr_sum;
+                    dst_ptr[2] = (sum_b * mul_sum) >> shr_sum;
+                }
+                dst_ptr += w4;
+
+                if (has_alpha) sum_a -= sum_out_a;
+                sum_r -= sum_out_r;
+                sum_g -= sum_out_g;
+                sum_b -= sum_out_b;
+
+                stack_start = sp + div - radius;
+                if(stack_start >= div) stack_start -= div;
+                stack_ptr = &stack[4 * stack_start];
+
+                sum_out_r -= stack_ptr[0];
+                sum_out_g -= stack_ptr[1];
+                sum_out_b -= stack_ptr[2];
+                if (has_alpha) sum_out_a -= stack_ptr[3];
+
+                if(yp < hm)
+                {
+                    src_ptr += w4; // stride
+                    ++yp;
+                }
+
+                stack_ptr[0] = src_ptr[0];
+                stack_ptr[1] = src_ptr[1];
+                stack_ptr[2] = src_ptr[2];
+                if (has_alpha) stack_ptr[3] = src_ptr[3];
+
+                sum_in_r += src_ptr[0];
+                sum_in_g += src_ptr[1];
+                sum_in_b += src_ptr[2];
+                if (has_alpha) sum_in_a += src_ptr[3];
+                sum_r    += sum_in_r;
+                sum_g    += sum_in_g;
+                sum_b    += sum_in_b;
+                if (has_alpha) sum_a += sum_in_a;
+
+                ++sp;
+                if (sp >= div) sp = 0;
+                stack_ptr = &stack[sp*4];
+
+                sum_out_r += stack_ptr[0];
+                sum_out_g += stack_ptr[1];
+                sum_out_b += stack_ptr[2];
+                if (has_alpha) sum_out_a += stack_ptr[3];
+                sum_in_r  -= stack_ptr[0];
+                sum_in_g  -= stack_ptr[1];
+                sum_in_b  -= stack_ptr[2];
+                if (has_alpha) sum_in_a -= stack_ptr[3];
+            }
+        }
+    }
+}
+
+/// Largest box radius whose window of 8.8 fixed point values fits an int sum.
+#define BOX_MAX_RADIUS ((0x7fffffff / (255 << 8) - 1) / 2)
+
+/// One box pass over a line of 8.8 fixed point RGBA values, edges clamped.
+/// Only the first {@code channels} channels are blurred.
+static void boxblurLine(const int* in, int* out, int n, int radius, int channels)
+{
+    int nm = n - 1;
+    int div = radius * 2 + 1;
+    int64_t inv = ((int64_t)1 << 32) / div + 1;
+    int c, i;
+
+    for(c = 0; c < channels; c++)
+    {
+        int sum = (radius + 1) * in[c];
+        for(i = 1; i <= radius; i++)
+            sum += in[4 * (i < nm ? i : nm) + c];
+
+        for(i = 0; i < n; i++)
+        {
+            int add = i + radius + 1;
+            int sub = i - radius;
+            out[4 * i + c] = (int)((sum * inv) >> 32);
+            sum += in[4 * (add < nm ? add : nm) + c] - in[4 * (sub > 0 ? sub : 0) + c];
+        }
+    }
+}
+
+/// Gaussian approximated by three box blurs, all three done per row (step 1)
+/// or per column (step 2) so that a stripe only needs the others once, between
+/// the horizontal and the vertical step.
+static void boxblurJob(unsigned char* src,                  ///< input image data
+                unsigned int w,                      ///< image width
+                unsigned int h,                      ///< image height
+                unsigned int stride,                 ///< bytes per row
+                const int* radii,                    ///< radius of each of the three boxes
+                int cores,                           ///< total number of working threads
+                int core,                            ///< current thread number
+                int step,                            ///< step of processing (1,2)
+                int has_alpha                        ///< blur alpha and keep colors premultiplied
+                )
+{
+    unsigned int w4 = stride;
+    int channels = has_alpha ? 4 : 3;
+    int first, last, n, pixel_stride, line_stride, line, i, c;
+
+    if (step == 1)
+    {
+        first = core * h / cores;
+        last = (core + 1) * h / cores;
+        n = w;
+        pixel_stride = 4;
+        line_stride = w4;
+    }
+    else
+    {
+        first = core * w / cores;
+        last = (core + 1) * w / cores;
+        n = h;
+        pixel_stride = w4;
+        line_stride = 4;
+    }
+
+    // per-thread scratch lines, ping-ponged between the three passes
+    int* a = (int*)malloc(sizeof(int) * 4 * n);
+    int* b = (int*)malloc(sizeof(int) * 4 * n);
+    if (a == NULL || b == NULL)
+    {
+        LOGE("boxblurJob: out of memory");
+        free(a);
+        free(b);
+        return;
+    }
+
+    for(line = first; line < last; line++)
+    {
+        unsigned char* ptr = src + line * line_stride;
+        for(i = 0; i < n; i++, ptr += pixel_stride)
+        {
+            a[4 * i + 0] = ptr[0] << 8;
+            a[4 * i + 1] = ptr[1] << 8;
+            a[4 * i + 2] = ptr[2] << 8;
+            a[4 * i + 3] = ptr[3] << 8;
+        }
+
+        boxblurLine(a, b, n, radii[0], channels);
+        boxblurLine(b, a, n, radii[1], channels);
+        boxblurLine(a, b, n, radii[2], channels);
+
+        ptr = src + line * line_stride;
+        for(i = 0; i < n; i++, ptr += pixel_stride)
+        {
+            if (has_alpha)
+            {
+                int alpha = (b[4 * i + 3] + 128) >> 8;
+                ptr[3] = alpha;
+                for(c = 0; c < 3; c++)
+                    ptr[c] = clamp((b[4 * i + c] + 128) >> 8, 0, alpha);
+            }
+            else
+            {
+                for(c = 0; c < 3; c++)
+                    ptr[c] = clamp((b[4 * i + c] + 128) >> 8, 0, 255);
+            }
+        }
+    }
+
+    free(a);
+    free(b);
+}
+
+/// Barrier between the horizontal and the vertical step.
+/// pthread_barrier_t is not available before Android N, so it is built on a condition.
+typedef struct
+{
+    pthread_mutex_t mutex;
+    pthread_cond_t cond;
+    int count;
+    int waiting;
+    unsigned int generation;
+} blur_barrier;
+
+static void barrierWait(blur_barrier* barrier)
+{
+    pthread_mutex_lock(&barrier->mutex);
+    unsigned int generation = barrier->generation;
+    if (++barrier->waiting == barrier->count)
+    {
+        barrier->waiting = 0;
+        barrier->generation++;
+        pthread_cond_broadcast(&barrier->cond);
+    }
+    else
+    {
+        while (generation == barrier->generation)
+            pthread_cond_wait(&barrier->cond, &barrier->mutex);
+    }
+    pthread_mutex_unlock(&barrier->mutex);
+}
+
+typedef struct
+{
+    unsigned char* pixels;
+    unsigned int w;
+    unsigned int h;
+    unsigned int stride;
+    int type;
+    int has_alpha;
+    int radii[3];
+    int threads;
+} blur_job;
+
+// Worker threads are started on first use and then kept waiting for jobs.
+// One blur runs on the pool at a time; the calling thread is worker 0.
+static pthread_mutex_t run_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_mutex_t pool_mutex = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t pool_start = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t pool_done = PTHREAD_COND_INITIALIZER;
+static int pool_size = 0;
+static int pool_pending = 0;
+static unsigned long pool_generation = 0;
+/// generation each worker was created at, so that it waits for the next job
+static unsigned long pool_created_at[BLUR_MAX_THREADS];
+static blur_job pool_job;
+static blur_barrier pool_barrier = { PTHREAD_MUTEX_INITIALIZER, PTHREAD_COND_INITIALIZER, 0, 0, 0 };
+
+static void runJob(const blur_job* job, int core)
+{
+    int step;
+    for(step = 1; step <= 2; step++)
+    {
+        if (job->type == BLUR_TYPE_BOX)
+            boxblurJob(job->pixels, job->w, job->h, job->stride, job->radii, job->threads, core, step, job->has_alpha);
+        else if (job->has_alpha)
+            stackblurJob(job->pixels, job->w, job->h, job->stride, job->radii[0], job->threads, core, step, 1);
+        else
+            stackblurJob(job->pixels, job->w, job->h, job->stride, job->radii[0], job->threads, core, step, 0);
+        if (step == 1 && job->threads > 1)
+            barrierWait(&pool_barrier);
+    }
+}
+
+static void* poolWorker(void* arg)
+{
+    int core = (int)(intptr_t)arg;
+    unsigned long seen;
+    blur_job job;
+
+    pthread_mutex_lock(&pool_mutex);
+    seen = pool_created_at[core];
+    pthread_mutex_unlock(&pool_mutex);
+
+    for(;;)
+    {
+        pthread_mutex_lock(&pool_mutex);
+        while (seen == pool_generation)
+            pthread_cond_wait(&pool_start, &pool_mutex);
+        seen = pool_generation;
+        job = pool_job;
+        pthread_mutex_unlock(&pool_mutex);
+
+        if (core < job.threads)
+            runJob(&job, core);
+
+        pthread_mutex_lock(&pool_mutex);
+        if (--pool_pending == 0)
+            pthread_cond_signal(&pool_done);
+        pthread_mutex_unlock(&pool_mutex);
+    }
+    return NULL;
+}
+
+int blurRun(unsigned char* pixels, unsigned int w, unsigned int h, unsigned int stride,
+            int type, int has_alpha, const int* radii, int threads)
+{
+    blur_job job;
+    int i;
+
+    if (w == 0 || h == 0)
+        return 0;
+    pthread_once(&kernels_once, selectKernels);
+    if (threads < 1)
+        threads = 1;
+    if (threads > BLUR_MAX_THREADS)
+        threads = BLUR_MAX_THREADS;
+
+    job.pixels = pixels;
+    job.w = w;
+    job.h = h;
+    job.stride = stride;
+    job.type = type;
+    job.has_alpha = has_alpha;
+    job.threads = threads;
+    // the stack blur is limited by its tables, the box sums by 32 bits
+    for(i = 0; i < 3; i++)
+        job.radii[i] = type == BLUR_TYPE_BOX ? clamp(radii[i], 0, BOX_MAX_RADIUS) : clamp(radii[0], 0, 254);
+    if (type != BLUR_TYPE_BOX && job.radii[0] < 1)
+        return 0;
+
+    if (threads == 1)
+    {
+        runJob(&job, 0);
+        return 0;
+    }
+
+    pthread_mutex_lock(&run_lock);
+
+    // grow the pool if this blur wants more threads than ever before
+    while (pool_size < threads - 1)
+    {
+        pthread_t thread;
+        // a job that already ran is not for the new worker
+        pthread_mutex_lock(&pool_mutex);
+        pool_created_at[pool_size + 1] = pool_generation;
+        pthread_mutex_unlock(&pool_mutex);
+        if (pthread_create(&thread, NULL, poolWorker, (void*)(intptr_t)(pool_size + 1)) != 0)
+            break;
+        pthread_detach(thread);
+        pthread_mutex_lock(&pool_mutex);
+        pool_size++;
+        pthread_mutex_unlock(&pool_mutex);
+    }
+    if (job.threads > pool_size + 1)
+        job.threads = pool_size + 1;
+
+    pool_barrier.count = job.threads;
+
+    pthread_mutex_lock(&pool_mutex);
+    pool_job = job;
+    pool_pending = pool_size;
+    pool_generation++;
+    pthread_cond_broadcast(&pool_start);
+    pthread_mutex_unlock(&pool_mutex);
+
+    runJob(&job, 0);
+
+    pthread_mutex_lock(&pool_mutex);
+    while (pool_pending > 0)
+        pthread_cond_wait(&pool_done, &pool_mutex);
+    pthread_mutex_unlock(&pool_mutex);
+
+    pthread_mutex_unlock(&run_lock);
+    return 0;
+}
@@ -0,0 +1,41 @@
+#ifndef _Included_blur_core
+#define _Included_blur_core
+
+// Blur kernels working on plain RGBA_8888 buffers, without any Android or JNI
+// dependency so they can also be built and tested on a desktop.
+
+#ifdef __ANDROID__
+#include <android/log.h>
+#define LOG_TAG "libbitmaputils"
+#define LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
+#define LOGE(...)  __android_log_print(ANDROID_LOG_ERROR,LOG_TAG,__VA_ARGS__)
+#else
+#include <stdio.h>
+#define LOGI(...)  (fprintf(stdout, __VA_ARGS__), fputc('\n', stdout))
+#define LOGE(...)  (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#endif
+
+#define BLUR_TYPE_STACK 1
+#define BLUR_TYPE_BOX 2
+
+#define BLUR_MAX_THREADS 64
+
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/// Blur a RGBA_8888 buffer in place, horizontal then vertical step, on
+/// {@code threads} threads (the calling one included).
+/// @param type BLUR_TYPE_STACK (uses radii[0]) or BLUR_TYPE_BOX (three boxes)
+/// @param has_alpha 0 for opaque images: only R, G and B are blurred and alpha is left as is
+int blurRun(unsigned char* pixels, unsigned int w, unsigned int h, unsigned int stride,
+            int type, int has_alpha, const int* radii, int threads);
+
+/// Name of the stack blur kernel picked for this CPU: "avx2", "sse4.1", "neon" or "scalar"
+const char* blurKernelName(void);
+
+#ifdef __cplusplus
+}
+#endif
+
+#endif
@@ -0,0 +1,361 @@
+#include <stdint.h>
+#include <string.h>
+#include "blur_simd.h"
+
+// The sums fit in 32 bit lanes (at most 255 * 255 * 255), but sum * mul_sum
+// does not, so the final multiply widens to 64 bits exactly like the scalar
+// kernel and the output is bit-identical to it.
+
+/// Write a RGBA pixel (little endian); without has_alpha the alpha byte
+/// already there is kept, as the scalar kernel never writes it
+static inline void storePixel(unsigned char* p, uint32_t rgba, int has_alpha)
+{
+    if (!has_alpha)
+        rgba = (rgba & 0x00ffffffu) | ((uint32_t)p[3] << 24);
+    memcpy(p, &rgba, 4);
+}
+
+#if BLUR_SIMD_X86
+#include <immintrin.h>
+
+#define SSE41 __attribute__((target("sse4.1")))
+#define AVX2 __attribute__((target("avx2")))
+
+static inline SSE41 __m128i sse41Load(const unsigned char* p)
+{
+    int32_t raw;
+    memcpy(&raw, p, 4);
+    return _mm_cvtepu8_epi32(_mm_cvtsi32_si128(raw));
+}
+
+/// (sum * mul) >> shr on the four lanes
+static inline SSE41 __m128i sse41MulShr(__m128i sum, __m128i mul, __m128i shr)
+{
+    __m128i even = _mm_srl_epi64(_mm_mul_epu32(sum, mul), shr);
+    __m128i odd = _mm_srl_epi64(_mm_mul_epu32(_mm_srli_epi64(sum, 32), mul), shr);
+    return _mm_or_si128(even, _mm_slli_epi64(odd, 32));
+}
+
+static inline SSE41 void sse41Store(unsigned char* p, __m128i v, int has_alpha)
+{
+    int32_t raw;
+    if (has_alpha)
+        v = _mm_min_epi32(v, _mm_shuffle_epi32(v, _MM_SHUFFLE(3, 3, 3, 3)));
+    v = _mm_packus_epi32(v, v);
+    v = _mm_packus_epi16(v, v);
+    raw = _mm_cvtsi128_si32(v);
+    storePixel(p, (uint32_t)raw, has_alpha);
+}
+
+static inline SSE41 __attribute__((always_inline)) void stackblurLinesSse41Body(unsigned char* src, int first, int last,
+                                  unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                                  unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha)
+{
+    unsigned int div = (radius * 2) + 1;
+    unsigned int nm = n - 1;
+    __m128i mul = _mm_set1_epi32(mul_sum);
+    __m128i shr = _mm_cvtsi32_si128(shr_sum);
+    __m128i stack[div];
+    int line;
+
+    for(line = first; line < last; line++)
+    {
+        unsigned char* src_ptr = src + line * line_stride;
+        unsigned char* dst_ptr = src_ptr;
+        __m128i sum = _mm_setzero_si128();
+        __m128i sum_in = _mm_setzero_si128();
+        __m128i sum_out = _mm_setzero_si128();
+        __m128i p = sse41Load(src_ptr);
+        unsigned int i, x, sp, xp, stack_start;
+
+        for(i = 0; i <= radius; i++)
+        {
+            stack[i] = p;
+            sum = _mm_add_epi32(sum, _mm_mullo_epi32(p, _mm_set1_epi32(i + 1)));
+            sum_out = _mm_add_epi32(sum_out, p);
+        }
+        for(i = 1; i <= radius; i++)
+        {
+            if (i <= nm) src_ptr += pixel_stride;
+            p = sse41Load(src_ptr);
+            stack[i + radius] = p;
+            sum = _mm_add_epi32(sum, _mm_mullo_epi32(p, _mm_set1_epi32(radius + 1 - i)));
+            sum_in = _mm_add_epi32(sum_in, p);
+        }
+
+        sp = radius;
+        xp = radius;
+        if (xp > nm) xp = nm;
+        src_ptr = dst_ptr + xp * pixel_stride;
+        for(x = 0; x < n; x++)
+        {
+            sse41Store(dst_ptr, sse41MulShr(sum, mul, shr), has_alpha);
+            dst_ptr += pixel_stride;
+
+            sum = _mm_sub_epi32(sum, sum_out);
+
+            stack_start = sp + div - radius;
+            if (stack_start >= div) stack_start -= div;
+            sum_out = _mm_sub_epi32(sum_out, stack[stack_start]);
+
+            if (xp < nm)
+            {
+                src_ptr += pixel_stride;
+                ++xp;
+            }
+
+            p = sse41Load(src_ptr);
+            stack[stack_start] = p;
+            sum_in = _mm_add_epi32(sum_in, p);
+            sum = _mm_add_epi32(sum, sum_in);
+
+            ++sp;
+            if (sp >= div) sp = 0;
+            sum_out = _mm_add_epi32(sum_out, stack[sp]);
+            sum_in = _mm_sub_epi32(sum_in, stack[sp]);
+        }
+    }
+}
+
+// has_alpha is a constant in each call so that the opaque variant of the
+// kernel is compiled without the alpha clamp
+SSE41 void stackblurLinesSse41(unsigned char* src, int first, int last,
+                               unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                               unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha)
+{
+    if (has_alpha)
+        stackblurLinesSse41Body(src, first, last, line_stride, n, pixel_stride, radius, mul_sum, shr_sum, 1);
+    else
+        stackblurLinesSse41Body(src, first, last, line_stride, n, pixel_stride, radius, mul_sum, shr_sum, 0);
+}
+
+/// One pixel of line a in the low 128 bits, one of line b in the high ones
+static inline AVX2 __m256i avx2Load(const unsigned char* a, const unsigned char* b)
+{
+    int32_t ra, rb;
+    memcpy(&ra, a, 4);
+    memcpy(&rb, b, 4);
+    return _mm256_cvtepu8_epi32(_mm_set_epi32(0, 0, rb, ra));
+}
+
+static inline AVX2 __m256i avx2MulShr(__m256i sum, __m256i mul, __m128i shr)
+{
+    __m256i even = _mm256_srl_epi64(_mm256_mul_epu32(sum, mul), shr);
+    __m256i odd = _mm256_srl_epi64(_mm256_mul_epu32(_mm256_srli_epi64(sum, 32), mul), shr);
+    return _mm256_or_si256(even, _mm256_slli_epi64(odd, 32));
+}
+
+static inline AVX2 void avx2Store(unsigned char* a, unsigned char* b, __m256i v, int has_alpha)
+{
+    int32_t ra, rb;
+    // shuffles and packs work within each 128 bit half, i.e. within each line
+    if (has_alpha)
+        v = _mm256_min_epi32(v, _mm256_shuffle_epi32(v, _MM_SHUFFLE(3, 3, 3, 3)));
+    v = _mm256_packus_epi32(v, v);
+    v = _mm256_packus_epi16(v, v);
+    ra = _mm256_cvtsi256_si32(v);
+    rb = _mm_cvtsi128_si32(_mm256_extracti128_si256(v, 1));
+    storePixel(a, (uint32_t)ra, has_alpha);
+    storePixel(b, (uint32_t)rb, has_alpha);
+}
+
+static inline AVX2 __attribute__((always_inline)) void stackblurLinesAvx2Body(unsigned char* src, int first, int last,
+                                 unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                                 unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha)
+{
+    unsigned int div = (radius * 2) + 1;
+    unsigned int nm = n - 1;
+    __m256i mul = _mm256_set1_epi32(mul_sum);
+    __m128i shr = _mm_cvtsi32_si128(shr_sum);
+    __m256i stack[div];
+    int line;
+
+    for(line = first; line + 1 < last; line += 2)
+    {
+        unsigned char* src_a = src + line * line_stride;
+        unsigned char* src_b = src_a + line_stride;
+        unsigned char* dst_a = src_a;
+        unsigned char* dst_b = src_b;
+        __m256i sum = _mm256_setzero_si256();
+        __m256i sum_in = _mm256_setzero_si256();
+        __m256i sum_out = _mm256_setzero_si256();
+        __m256i p = avx2Load(src_a, src_b);
+        unsigned int i, x, sp, xp, stack_start;
+
+        for(i = 0; i <= radius; i++)
+        {
+            stack[i] = p;
+            sum = _mm256_add_epi32(sum, _mm256_mullo_epi32(p, _mm256_set1_epi32(i + 1)));
+            sum_out = _mm256_add_epi32(sum_out, p);
+        }
+        for(i = 1; i <= radius; i++)
+        {
+            if (i <= nm)
+            {
+                src_a += pixel_stride;
+                src_b += pixel_stride;
+            }
+            p = avx2Load(src_a, src_b);
+            stack[i + radius] = p;
+            sum = _mm256_add_epi32(sum, _mm256_mullo_epi32(p, _mm256_set1_epi32(radius + 1 - i)));
+            sum_in = _mm256_add_epi32(sum_in, p);
+        }
+
+        sp = radius;
+        xp = radius;
+        if (xp > nm) xp = nm;
+        src_a = dst_a + xp * pixel_stride;
+        src_b = dst_b + xp * pixel_stride;
+        for(x = 0; x < n; x++)
+        {
+            avx2Store(dst_a, dst_b, avx2MulShr(sum, mul, shr), has_alpha);
+            dst_a += pixel_stride;
+            dst_b += pixel_stride;
+
+            sum = _mm256_sub_epi32(sum, sum_out);
+
+            stack_start = sp + div - radius;
+            if (stack_start >= div) stack_start -= div;
+            sum_out = _mm256_sub_epi32(sum_out, stack[stack_start]);
+
+            if (xp < nm)
+            {
+                src_a += pixel_stride;
+                src_b += pixel_stride;
+                ++xp;
+            }
+
+            p = avx2Load(src_a, src_b);
+            stack[stack_start] = p;
+            sum_in = _mm256_add_epi32(sum_in, p);
+            sum = _mm256_add_epi32(sum, sum_in);
+
+            ++sp;
+            if (sp >= div) sp = 0;
+            sum_out = _mm256_add_epi32(sum_out, stack[sp]);
+            sum_in = _mm256_sub_epi32(sum_in, stack[sp]);
+        }
+    }
+
+    // odd line left over
+    if (line < last)
+        stackblurLinesSse41(src, line, last, line_stride, n, pixel_stride, radius, mul_sum, shr_sum, has_alpha);
+}
+
+AVX2 void stackblurLinesAvx2(unsigned char* src, int first, int last,
+                             unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                             unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha)
+{
+    if (has_alpha)
+        stackblurLinesAvx2Body(src, first, last, line_stride, n, pixel_stride, radius, mul_sum, shr_sum, 1);
+    else
+        stackblurLinesAvx2Body(src, first, last, line_stride, n, pixel_stride, radius, mul_sum, shr_sum, 0);
+}
+#endif
+
+#if BLUR_SIMD_NEON
+#include <arm_neon.h>
+
+static inline uint32x4_t neonLoad(const unsigned char* p)
+{
+    uint32_t raw;
+    memcpy(&raw, p, 4);
+    return vmovl_u16(vget_low_u16(vmovl_u8(vreinterpret_u8_u32(vdup_n_u32(raw)))));
+}
+
+static inline uint32x4_t neonMulShr(uint32x4_t sum, uint32_t mul, int64x2_t shr)
+{
+    uint64x2_t lo = vshlq_u64(vmull_n_u32(vget_low_u32(sum), mul), shr);
+    uint64x2_t hi = vshlq_u64(vmull_n_u32(vget_high_u32(sum), mul), shr);
+    return vcombine_u32(vmovn_u64(lo), vmovn_u64(hi));
+}
+
+static inline void neonStore(unsigned char* p, uint32x4_t v, int has_alpha)
+{
+    uint16x4_t narrow;
+    if (has_alpha)
+        v = vminq_u32(v, vdupq_n_u32(vgetq_lane_u32(v, 3)));
+    narrow = vmovn_u32(v);
+    storePixel(p, vget_lane_u32(vreinterpret_u32_u8(vmovn_u16(vcombine_u16(narrow, narrow))), 0), has_alpha);
+}
+
+static inline __attribute__((always_inline)) void stackblurLinesNeonBody(unsigned char* src, int first, int last,
+                            unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                            unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha)
+{
+    unsigned int div = (radius * 2) + 1;
+    unsigned int nm = n - 1;
+    // vshl with a negative count shifts right
+    int64x2_t shr = vdupq_n_s64(-(int64_t)shr_sum);
+    uint32x4_t stack[div];
+    int line;
+
+    for(line = first; line < last; line++)
+    {
+        unsigned char* src_ptr = src + line * line_stride;
+        unsigned char* dst_ptr = src_ptr;
+        uint32x4_t sum = vdupq_n_u32(0);
+        uint32x4_t sum_in = vdupq_n_u32(0);
+        uint32x4_t sum_out = vdupq_n_u32(0);
+        uint32x4_t p = neonLoad(src_ptr);
+        unsigned int i, x, sp, xp, stack_start;
+
+        for(i = 0; i <= radius; i++)
+        {
+            stack[i] = p;
+            sum = vmlaq_n_u32(sum, p, i + 1);
+            sum_out = vaddq_u32(sum_out, p);
+        }
+        for(i = 1; i <= radius; i++)
+        {
+            if (i <= nm) src_ptr += pixel_stride;
+            p = neonLoad(src_ptr);
+            stack[i + radius] = p;
+            sum = vmlaq_n_u32(sum, p, radius + 1 - i);
+            sum_in = vaddq_u32(sum_in, p);
+        }
+
+        sp = radius;
+        xp = radius;
+        if (xp > nm) xp = nm;
+        src_ptr = dst_ptr + xp * pixel_stride;
+        for(x = 0; x < n; x++)
+        {
+            neonStore(dst_ptr, neonMulShr(sum, mul_sum, shr), has_alpha);
+            dst_ptr += pixel_stride;
+
+            sum = vsubq_u32(sum, sum_out);
+
+            stack_start = sp + div - radius;
+            if (stack_start >= div) stack_start -= div;
+            sum_out = vsubq_u32(sum_out, stack[stack_start]);
+
+            if (xp < nm)
+            {
+                src_ptr += pixel_stride;
+                ++xp;
+            }
+
+            p = neonLoad(src_ptr);
+            stack[stack_start] = p;
+            sum_in = vaddq_u32(sum_in, p);
+            sum = vaddq_u32(sum, sum_in);
+
+            ++sp;
+            if (sp >= div) sp = 0;
+            sum_out = vaddq_u32(sum_out, stack[sp]);
+            sum_in = vsubq_u32(sum_in, stack[sp]);
+        }
+    }
+}
+
+void stackblurLinesNeon(unsigned char* src, int first, int last,
+                        unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                        unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha)
+{
+    if (has_alpha)
+        stackblurLinesNeonBody(src, first, last, line_stride, n, pixel_stride, radius, mul_sum, shr_sum, 1);
+    else
+        stackblurLinesNeonBody(src, first, last, line_stride, n, pixel_stride, radius, mul_sum, shr_sum, 0);
+}
+#endif
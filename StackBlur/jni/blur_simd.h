@@ -0,0 +1,38 @@
+#ifndef _Included_blur_simd
+#define _Included_blur_simd
+
+// Vectorized stack blur kernels. Each one blurs whole lines with the four
+// RGBA channels of a pixel packed in one vector of 32 bit lanes; the AVX2 one
+// also runs two lines side by side. They give the same bytes as stackblurJob.
+
+#if defined(__x86_64__) || defined(__i386__)
+#define BLUR_SIMD_X86 1
+#elif defined(__aarch64__) || defined(BLUR_ARM_NEON)
+// armeabi-v7a builds blur_simd.c with NEON and checks the CPU at runtime
+#define BLUR_SIMD_NEON 1
+#endif
+
+/// Blur lines [first, last) of {@code n} pixels. Lines start {@code line_stride}
+/// bytes apart, pixels of a line {@code pixel_stride} bytes apart, so rows and
+/// columns go through the same kernel. Without has_alpha the alpha bytes are
+/// left untouched and colors are not clamped to alpha.
+typedef void (*stackblur_lines_fn)(unsigned char* src, int first, int last,
+                                   unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                                   unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha);
+
+#if BLUR_SIMD_X86
+void stackblurLinesSse41(unsigned char* src, int first, int last,
+                         unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                         unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha);
+void stackblurLinesAvx2(unsigned char* src, int first, int last,
+                        unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                        unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha);
+#endif
+
+#if BLUR_SIMD_NEON
+void stackblurLinesNeon(unsigned char* src, int first, int last,
+                        unsigned int line_stride, unsigned int n, unsigned int pixel_stride,
+                        unsigned int radius, unsigned int mul_sum, unsigned int shr_sum, int has_alpha);
+#endif
+
+#endif
@@ -0,0 +1,104 @@
+package com.enrique.stackblur;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes images no larger than needed to blur them: a 12 megapixel photo
+ * shown blurred on a phone screen is decoded with {@code inSampleSize}, so
+ * both the decoding and the blur work on a fraction of the pixels.
+ * <p/>
+ * The target is the box the blurred image is fitted into for display (as
+ * ImageView's default scale type does) and the radius the smallest one it
+ * will be blurred with, in pixels of that box. The image is decoded at least
+ * as large as it is displayed, and smaller still when the radius is large
+ * enough to wipe out the lost detail anyway.
+ */
+public class BitmapLoader {
+
+	/**
+	 * Smallest radius, in pixels of the decoded image, that the subsampling
+	 * may bring the blur down to
+	 */
+	static final float MIN_DECODED_RADIUS = 3;
+
+	private static final ExecutorService DECODER = BlurThreadFactory.singleThread("StackBlur-decoder",
+			android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+	private BitmapLoader() {
+	}
+
+	/**
+	 * @param width width of the image as stored
+	 * @param height height of the image as stored
+	 * @param radius smallest radius the image will be blurred with, in pixels of the target
+	 * @return the largest power of two the image can be subsampled by
+	 */
+	public static int sampleSizeFor(int width, int height, int targetWidth, int targetHeight, float radius) {
+		if (targetWidth <= 0 || targetHeight <= 0)
+			return 1;
+		// detail finer than a few pixels of the radius is blurred away anyway
+		float slack = Math.max(1, radius / MIN_DECODED_RADIUS);
+		float minWidth = targetWidth / slack;
+		float minHeight = targetHeight / slack;
+		int sample = 1;
+		// fitted into the target, the image is displayed as wide or as high as the target
+		while (width / (sample * 2) >= minWidth || height / (sample * 2) >= minHeight)
+			sample *= 2;
+		return sample;
+	}
+
+	/**
+	 * Decode a resource on the calling thread, subsampled for the target size and radius.
+	 * @return null if the resource can't be decoded
+	 */
+	public static Bitmap decodeResource(Resources res, int id, int targetWidth, int targetHeight, float radius) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeResource(res, id, options);
+		prepare(options, targetWidth, targetHeight, radius);
+		return BitmapFactory.decodeResource(res, id, options);
+	}
+
+	/**
+	 * Decode a file on the calling thread, subsampled for the target size and radius.
+	 * @return null if the file can't be decoded
+	 */
+	public static Bitmap decodeFile(String path, int targetWidth, int targetHeight, float radius) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		prepare(options, targetWidth, targetHeight, radius);
+		return BitmapFactory.decodeFile(path, options);
+	}
+
+	/**
+	 * Queue {@link #decodeFile} on the background decoder thread, e.g. while
+	 * the previous image is still being blurred.
+	 * @return completes with the bitmap, or null if the file can't be decoded
+	 */
+	public static Future<Bitmap> decodeFileAsync(final String path, final int targetWidth, final int targetHeight,
+	                                             final float radius) {
+		return DECODER.submit(new Callable<Bitmap>() {
+			@Override
+			public Bitmap call() {
+				return decodeFile(path, targetWidth, targetHeight, radius);
+			}
+		});
+	}
+
+	/**
+	 * Turn the options of a bounds-only decode into those of the real one
+	 */
+	private static void prepare(BitmapFactory.Options options, int targetWidth, int targetHeight, float radius) {
+		options.inJustDecodeBounds = false;
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		if (options.outWidth > 0 && options.outHeight > 0)
+			options.inSampleSize = sampleSizeFor(options.outWidth, options.outHeight, targetWidth, targetHeight, radius);
+	}
+}
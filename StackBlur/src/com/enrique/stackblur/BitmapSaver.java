@@ -0,0 +1,110 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes bitmaps to files on a background encoder thread, so the next blur
+ * can run while the previous result is still being compressed.
+ */
+public class BitmapSaver {
+
+	public enum Format {
+		PNG,
+		JPEG,
+		WEBP,
+		/**
+		 * Uncompressed ARGB ints, see {@link MappedPixelFile}
+		 */
+		RAW
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final ExecutorService ENCODER = BlurThreadFactory.singleThread("StackBlur-encoder",
+			android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+	private BitmapSaver() {
+	}
+
+	/**
+	 * Queue the bitmap for encoding. The bitmap must not be recycled or
+	 * modified until the returned future completes.
+	 * @param quality 0-100, ignored by PNG and RAW
+	 * @return the written file, or an {@link java.util.concurrent.ExecutionException}
+	 * wrapping the {@link IOException} if encoding failed
+	 */
+	public static Future<File> saveAsync(final Bitmap bitmap, final File file, final Format format, final int quality) {
+		return ENCODER.submit(new Callable<File>() {
+			@Override
+			public File call() throws IOException {
+				save(bitmap, file, format, quality);
+				return file;
+			}
+		});
+	}
+
+	/**
+	 * Encode on the calling thread. A partially written file is deleted on failure.
+	 */
+	public static void save(Bitmap bitmap, File file, Format format, int quality) throws IOException {
+		boolean done = false;
+		try {
+			if (format == Format.RAW)
+				writeRaw(bitmap, file);
+			else
+				compress(bitmap, file, format, quality);
+			done = true;
+		} finally {
+			if (!done)
+				file.delete();
+		}
+	}
+
+	private static void compress(Bitmap bitmap, File file, Format format, int quality) throws IOException {
+		Bitmap.CompressFormat compressFormat;
+		switch (format) {
+			case JPEG:
+				compressFormat = Bitmap.CompressFormat.JPEG;
+				break;
+			case WEBP:
+				compressFormat = Bitmap.CompressFormat.WEBP;
+				break;
+			default:
+				compressFormat = Bitmap.CompressFormat.PNG;
+				break;
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+		try {
+			if (!bitmap.compress(compressFormat, quality, out))
+				throw new IOException("could not encode " + file + " as " + format);
+		} finally {
+			out.close();
+		}
+	}
+
+	static void writeRaw(Bitmap bitmap, File file) throws IOException {
+		int w = bitmap.getWidth();
+		int h = bitmap.getHeight();
+		MappedPixelFile raw = MappedPixelFile.create(file, w, h);
+		try {
+			int rows = StreamingBlurProcess.DEFAULT_STRIP_HEIGHT;
+			int[] strip = new int[rows * w];
+			for (int top = 0; top < h; top += rows) {
+				int count = Math.min(rows, h - top);
+				bitmap.getPixels(strip, 0, w, 0, top, w, count);
+				raw.writeRows(top, count, strip);
+			}
+		} finally {
+			raw.close();
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Picks the fastest stack blur backend for an image size and radius.
+ * <p/>
+ * All the backends give the same stack blur, they only differ in speed, and
+ * which one wins depends on the device: the number of cores, whether the
+ * native library is there and which SIMD kernel it uses. Calibrating blurs a
+ * few probe images with every backend and keeps, for each size and radius
+ * bucket, the fastest one. The table is then reused for the lifetime of the
+ * process; {@link #toString()} prints it.
+ * <p/>
+ * There is a table per executor parallelism, measured on the first executor
+ * of that parallelism asked for: the striped backend of a two thread pool
+ * does not win where that of an eight thread pool does.
+ */
+public final class BlurBackendTable {
+	private static final String TAG = "BlurBackendTable";
+
+	public enum Backend {
+		/**
+		 * {@link StackJavaBlurProcess} on the calling thread only
+		 */
+		JAVA_SINGLE_THREAD,
+		/**
+		 * {@link StackJavaBlurProcess} striped across the manager's {@link BlurExecutor}
+		 */
+		JAVA_STRIPED,
+		/**
+		 * {@link NativeBlurProcess}, with the best SIMD kernel of the CPU
+		 */
+		NATIVE
+	}
+
+	/**
+	 * Upper bound (inclusive) of the pixel count of each size bucket
+	 */
+	static final int[] MAX_PIXELS = {64 * 64, 256 * 256, Integer.MAX_VALUE};
+
+	/**
+	 * Upper bound (inclusive) of the radius of each radius bucket
+	 */
+	static final int[] MAX_RADIUS = {16, 254};
+
+	/**
+	 * Side of the square probe image of each size bucket. The largest bucket
+	 * is measured at 512x512, beyond which the ranking no longer changes.
+	 */
+	private static final int[] PROBE_SIDES = {64, 256, 512};
+	private static final int[] PROBE_RADII = {8, 48};
+	private static final int PROBE_RUNS = 2;
+
+	/**
+	 * Calibrations started, by parallelism
+	 */
+	private static final HashMap<Integer, FutureTask<BlurBackendTable>> sTables =
+			new HashMap<Integer, FutureTask<BlurBackendTable>>();
+	private static ExecutorService sCalibrator;
+
+	private final int _parallelism;
+	private final Backend[][] _choices;
+	private final long[][][] _nanos;
+	private final String _nativeKernel;
+
+	private BlurBackendTable(int parallelism, Backend[][] choices, long[][][] nanos, String nativeKernel) {
+		_parallelism = parallelism;
+		_choices = choices;
+		_nanos = nanos;
+		_nativeKernel = nativeKernel;
+	}
+
+	/**
+	 * The table of the default executor, see {@link #get(BlurExecutor)}
+	 */
+	public static BlurBackendTable get() {
+		return get(BlurExecutor.getDefault());
+	}
+
+	/**
+	 * The table of executors of this parallelism, calibrated on the calling
+	 * thread if nobody did yet (a few hundred milliseconds at most, plus
+	 * loading the native library). Call it from a background thread.
+	 */
+	public static BlurBackendTable get(BlurExecutor executor) {
+		FutureTask<BlurBackendTable> table;
+		boolean calibrateHere = false;
+		synchronized (sTables) {
+			table = sTables.get(executor.getParallelism());
+			if (table == null) {
+				table = newCalibration(executor);
+				calibrateHere = true;
+			}
+		}
+		if (calibrateHere)
+			table.run();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return table.get();
+				} catch (InterruptedException e) {
+					// another thread is calibrating, finish waiting and keep the interrupt
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException)
+						throw (RuntimeException) cause;
+					if (cause instanceof Error)
+						throw (Error) cause;
+					throw new RuntimeException(cause);
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Never blocks: starts calibrating for executors of this parallelism on
+	 * a background thread if nobody did yet.
+	 * @return the table, or null while it is being calibrated
+	 */
+	static BlurBackendTable getIfCalibrated(BlurExecutor executor) {
+		FutureTask<BlurBackendTable> table;
+		synchronized (sTables) {
+			table = sTables.get(executor.getParallelism());
+			if (table == null) {
+				table = newCalibration(executor);
+				if (sCalibrator == null)
+					sCalibrator = BlurThreadFactory.singleThread("StackBlur-calibrator", BlurThreadFactory.BLUR_PRIORITY);
+				sCalibrator.execute(table);
+				return null;
+			}
+		}
+		if (!table.isDone())
+			return null;
+		try {
+			return table.get();
+		} catch (Exception e) {
+			// a failed calibration is rethrown by get(BlurExecutor)
+			return null;
+		}
+	}
+
+	/**
+	 * @return the calibration, registered for the parallelism but not run yet
+	 */
+	private static FutureTask<BlurBackendTable> newCalibration(final BlurExecutor executor) {
+		FutureTask<BlurBackendTable> table = new FutureTask<BlurBackendTable>(new Callable<BlurBackendTable>() {
+			@Override
+			public BlurBackendTable call() {
+				BlurBackendTable calibrated = calibrate(executor);
+				Log.i(TAG, calibrated.toString());
+				return calibrated;
+			}
+		});
+		sTables.put(executor.getParallelism(), table);
+		return table;
+	}
+
+	public Backend choose(int width, int height, int radius) {
+		return _choices[sizeBucket((long) width * height)][radiusBucket(radius)];
+	}
+
+	/**
+	 * @return the probe time of a backend in the bucket of this size and radius,
+	 * or {@link Long#MAX_VALUE} if that backend is not available
+	 */
+	public long getNanos(Backend backend, int width, int height, int radius) {
+		return _nanos[sizeBucket((long) width * height)][radiusBucket(radius)][backend.ordinal()];
+	}
+
+	/**
+	 * @return the native SIMD kernel, or null if the native library could not be loaded
+	 */
+	public String getNativeKernel() {
+		return _nativeKernel;
+	}
+
+	/**
+	 * The fastest backend for this executor, or the striped Java one while the
+	 * table of its parallelism is being calibrated
+	 */
+	static BlurProcess processFor(int width, int height, int radius, BlurExecutor executor) {
+		BlurBackendTable table = getIfCalibrated(executor);
+		return newProcess(table == null ? Backend.JAVA_STRIPED : table.choose(width, height, radius), executor);
+	}
+
+	static int sizeBucket(long pixels) {
+		int i = 0;
+		while (pixels > MAX_PIXELS[i])
+			i++;
+		return i;
+	}
+
+	static int radiusBucket(int radius) {
+		int i = 0;
+		while (i < MAX_RADIUS.length - 1 && radius > MAX_RADIUS[i])
+			i++;
+		return i;
+	}
+
+	private static BlurProcess newProcess(Backend backend, BlurExecutor executor) {
+		switch (backend) {
+			case JAVA_SINGLE_THREAD:
+				return new StackJavaBlurProcess(BlurExecutor.callingThread());
+			case NATIVE:
+				return new NativeBlurProcess(BlurProcess.TYPE_StackBlur, executor);
+			default:
+				return new StackJavaBlurProcess(executor);
+		}
+	}
+
+	private static BlurBackendTable calibrate(BlurExecutor executor) {
+		Backend[] backends = Backend.values();
+		String nativeKernel = NativeBlurProcess.kernelName();
+
+		Backend[][] choices = new Backend[MAX_PIXELS.length][MAX_RADIUS.length];
+		long[][][] nanos = new long[MAX_PIXELS.length][MAX_RADIUS.length][backends.length];
+
+		// warm up every backend once so the first bucket does not measure the JIT
+		Bitmap warmUp = probe(PROBE_SIDES[0]);
+		for (Backend backend : backends) {
+			if (backend != Backend.NATIVE || nativeKernel != null)
+				newProcess(backend, executor).blur(warmUp, PROBE_RADII[0]);
+		}
+
+		for (int s = 0; s < MAX_PIXELS.length; s++) {
+			Bitmap image = probe(PROBE_SIDES[s]);
+			for (int r = 0; r < MAX_RADIUS.length; r++) {
+				Backend best = Backend.JAVA_STRIPED;
+				long bestTime = Long.MAX_VALUE;
+				for (Backend backend : backends) {
+					long time = Long.MAX_VALUE;
+					if (backend != Backend.NATIVE || nativeKernel != null)
+						time = measure(newProcess(backend, executor), image, PROBE_RADII[r]);
+					nanos[s][r][backend.ordinal()] = time;
+					if (time < bestTime) {
+						best = backend;
+						bestTime = time;
+					}
+				}
+				choices[s][r] = best;
+			}
+		}
+		return new BlurBackendTable(executor.getParallelism(), choices, nanos, nativeKernel);
+	}
+
+	private static long measure(BlurProcess process, Bitmap image, int radius) {
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < PROBE_RUNS; i++) {
+			long start = System.nanoTime();
+			process.blur(image, radius);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * An opaque noise image; the blur cost does not depend on the content
+	 */
+	static Bitmap probe(int side) {
+		int[] pixels = new int[side * side];
+		int seed = 1;
+		for (int i = 0; i < pixels.length; i++) {
+			seed = seed * 1103515245 + 12345;
+			pixels[i] = 0xff000000 | (seed >>> 8);
+		}
+		return Bitmap.createBitmap(pixels, side, side, Bitmap.Config.ARGB_8888);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("stack blur backends (")
+				.append(_parallelism).append(" stripes, native kernel: ")
+				.append(_nativeKernel == null ? "unavailable" : _nativeKernel).append(")");
+		for (int s = 0; s < MAX_PIXELS.length; s++) {
+			for (int r = 0; r < MAX_RADIUS.length; r++) {
+				sb.append(String.format(Locale.US, "\n  pixels <= %s, radius <= %d: %s",
+						MAX_PIXELS[s] == Integer.MAX_VALUE ? "any" : String.valueOf(MAX_PIXELS[s]),
+						MAX_RADIUS[r], _choices[s][r]));
+				for (Backend backend : Backend.values()) {
+					long time = _nanos[s][r][backend.ordinal()];
+					sb.append(String.format(Locale.US, " %s=%s", backend,
+							time == Long.MAX_VALUE ? "n/a" : String.format(Locale.US, "%.2fms", time / 1e6)));
+				}
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,202 @@
+package com.enrique.stackblur;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the stripes of a blur run, and how many of them there are.
+ * <p/>
+ * Either a pool built and owned by this object (see {@link Builder}), whose
+ * threads are named, prioritized, daemon by default and stop when idle, or any
+ * caller supplied {@link Executor} (see {@link #wrap}), e.g. a ForkJoin or
+ * virtual thread pool, which is never shut down from here.
+ * <p/>
+ * The thread asking for a blur always runs the stripes no pool thread has
+ * picked up yet, so a blur completes even on a saturated executor or when it
+ * is started from one of the executor's own threads.
+ */
+public final class BlurExecutor {
+
+	private static final BlurExecutor CALLING_THREAD = new BlurExecutor(new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	}, null, 1);
+
+	private static BlurExecutor sDefault;
+
+	private final Executor _executor;
+	private final ExecutorService _owned;
+	private final int _parallelism;
+
+	private BlurExecutor(Executor executor, ExecutorService owned, int parallelism) {
+		_executor = executor;
+		_owned = owned;
+		_parallelism = parallelism;
+	}
+
+	/**
+	 * The pool shared by managers that were not given one: one thread per
+	 * core, as built by a default {@link Builder}. Created again if it was
+	 * shut down.
+	 */
+	public static synchronized BlurExecutor getDefault() {
+		if (sDefault == null || sDefault.isShutdown())
+			sDefault = new Builder().build();
+		return sDefault;
+	}
+
+	/**
+	 * Run blurs on an executor owned by the caller.
+	 * @param parallelism number of stripes each blur step is split into
+	 */
+	public static BlurExecutor wrap(Executor executor, int parallelism) {
+		return new BlurExecutor(executor, null, Math.max(1, parallelism));
+	}
+
+	/**
+	 * Run blurs entirely on the thread asking for them, in a single stripe.
+	 */
+	public static BlurExecutor callingThread() {
+		return CALLING_THREAD;
+	}
+
+	public int getParallelism() {
+		return _parallelism;
+	}
+
+	/**
+	 * Stop the pool threads once the blurs already started are done.
+	 * Does nothing for executors passed to {@link #wrap}.
+	 */
+	public void shutdown() {
+		if (_owned != null)
+			_owned.shutdown();
+	}
+
+	public boolean isShutdown() {
+		return _owned != null && _owned.isShutdown();
+	}
+
+	/**
+	 * @return false if the pool threads were still running after the timeout
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return _owned == null || _owned.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Start the pool threads now rather than on the first blur
+	 */
+	void prestart() {
+		if (_owned instanceof ThreadPoolExecutor)
+			((ThreadPoolExecutor) _owned).prestartAllCoreThreads();
+	}
+
+	void execute(Runnable task) {
+		_executor.execute(task);
+	}
+
+	/**
+	 * Run all the tasks and wait for them. The first exception thrown by a
+	 * task is rethrown here.
+	 */
+	<T> void invokeAll(List<? extends Callable<T>> tasks) throws InterruptedException {
+		ArrayList<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+		for (Callable<T> task : tasks)
+			futures.add(new FutureTask<T>(task));
+		try {
+			// the last task is left to the calling thread anyway
+			for (int i = 0; i < futures.size() - 1; i++)
+				_executor.execute(futures.get(i));
+		} catch (RejectedExecutionException e) {
+			// shut down or saturated: the loop below runs what is left
+		}
+		try {
+			// from the end, while the executor takes them from the start
+			for (int i = futures.size() - 1; i >= 0; i--)
+				futures.get(i).run();
+			for (FutureTask<T> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			for (FutureTask<T> future : futures)
+				future.cancel(true);
+			throw e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	public static final class Builder {
+		private String _name = "StackBlur";
+		private int _priority = BlurThreadFactory.BLUR_PRIORITY;
+		private boolean _daemon = true;
+		private int _parallelism = Runtime.getRuntime().availableProcessors();
+		private long _keepAliveMillis = 30000;
+
+		/**
+		 * Threads are called {@code name-1}, {@code name-2}... Default "StackBlur".
+		 */
+		public Builder name(String name) {
+			_name = name;
+			return this;
+		}
+
+		/**
+		 * An {@link android.os.Process} thread priority. Default is slightly
+		 * below normal, so blurring doesn't compete with the UI and render threads.
+		 */
+		public Builder priority(int androidPriority) {
+			_priority = androidPriority;
+			return this;
+		}
+
+		/**
+		 * Default true: the pool never keeps the process alive.
+		 */
+		public Builder daemon(boolean daemon) {
+			_daemon = daemon;
+			return this;
+		}
+
+		/**
+		 * Number of pool threads, which is also the number of stripes of each
+		 * blur step. Default is the number of cores.
+		 */
+		public Builder parallelism(int parallelism) {
+			_parallelism = Math.max(1, parallelism);
+			return this;
+		}
+
+		/**
+		 * Idle pool threads stop after this time. Default 30 seconds.
+		 */
+		public Builder keepAlive(long time, TimeUnit unit) {
+			_keepAliveMillis = Math.max(1, unit.toMillis(time));
+			return this;
+		}
+
+		public BlurExecutor build() {
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(_parallelism, _parallelism,
+					_keepAliveMillis, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+					new BlurThreadFactory(_name, true, _priority, _daemon));
+			pool.allowCoreThreadTimeOut(true);
+			return new BlurExecutor(pool, pool, _parallelism);
+		}
+	}
+}
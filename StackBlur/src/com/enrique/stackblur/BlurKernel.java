@@ -0,0 +1,151 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+
+/**
+ * Any two dimensional kernel, for {@link StackBlurManager#processKernel}: a
+ * bokeh shape, a star filter, a measured point spread function...
+ * <p/>
+ * Every source pixel is spread over the image with the weights of the
+ * kernel, its center at the pixel (a true convolution: the kernel is not
+ * mirrored). Weights are normalized to add up to 1 unless they add up to 0.
+ * <p/>
+ * A kernel keeps the spectra computed for it, so blurring many images with
+ * the same kernel transforms it only once per tile size. Keep the kernel
+ * object around to benefit from it.
+ */
+public final class BlurKernel {
+
+	private final float[] _weights;
+	private final int _width;
+	private final int _height;
+	private final int _tapCount;
+	/**
+	 * Real and imaginary parts of the spectrum of each tile size
+	 */
+	private final HashMap<Integer, float[][]> _spectra = new HashMap<Integer, float[][]>();
+
+	private BlurKernel(float[] weights, int width, int height) {
+		_width = width;
+		_height = height;
+		_weights = new float[width * height];
+		double sum = 0;
+		for (int i = 0; i < width * height; i++)
+			sum += weights[i];
+		int taps = 0;
+		for (int i = 0; i < width * height; i++) {
+			_weights[i] = sum != 0 ? (float) (weights[i] / sum) : weights[i];
+			if (_weights[i] != 0)
+				taps++;
+		}
+		_tapCount = taps;
+	}
+
+	/**
+	 * @param weights width * height weights, row after row; the center of the
+	 *                kernel is at (width / 2, height / 2)
+	 */
+	public static BlurKernel fromArray(float[] weights, int width, int height) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("empty kernel: " + width + "x" + height);
+		if (weights.length < width * height)
+			throw new IllegalArgumentException("expected " + width * height + " weights, got " + weights.length);
+		return new BlurKernel(weights, width, height);
+	}
+
+	/**
+	 * A kernel drawn as an image, e.g. a white hexagon on black: the weight of
+	 * a pixel is its brightness times its opacity.
+	 */
+	public static BlurKernel fromBitmap(Bitmap shape) {
+		int w = shape.getWidth();
+		int h = shape.getHeight();
+		int[] pixels = new int[w * h];
+		shape.getPixels(pixels, 0, w, 0, 0, w, h);
+		float[] weights = new float[w * h];
+		for (int i = 0; i < w * h; i++) {
+			int p = pixels[i];
+			int brightness = ((p >>> 16) & 0xff) + ((p >>> 8) & 0xff) + (p & 0xff);
+			weights[i] = brightness * (p >>> 24) / (3f * 255 * 255);
+		}
+		return fromArray(weights, w, h);
+	}
+
+	/**
+	 * A flat disc with an antialiased edge, the shape of an ideal lens blur
+	 */
+	public static BlurKernel disc(float radius) {
+		int r = (int) Math.ceil(radius);
+		int size = 2 * r + 1;
+		float[] weights = new float[size * size];
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				float distance = (float) Math.sqrt((x - r) * (x - r) + (y - r) * (y - r));
+				weights[y * size + x] = Math.max(0, Math.min(1, radius + 0.5f - distance));
+			}
+		}
+		return fromArray(weights, size, size);
+	}
+
+	public int getWidth() {
+		return _width;
+	}
+
+	public int getHeight() {
+		return _height;
+	}
+
+	/**
+	 * @return number of non zero weights, what a direct convolution costs per pixel
+	 */
+	int getTapCount() {
+		return _tapCount;
+	}
+
+	/**
+	 * @return the normalized weights, not to be modified
+	 */
+	float[] getWeights() {
+		return _weights;
+	}
+
+	/**
+	 * @return the real and imaginary parts of the transform of the kernel,
+	 * zero padded to size x size with its first weight at (0, 0), divided by
+	 * size^2 for the unscaled inverse transform
+	 */
+	synchronized float[][] getSpectrum(int size) {
+		float[][] spectrum = _spectra.get(size);
+		if (spectrum != null)
+			return spectrum;
+
+		float[] re = new float[size * size];
+		float[] im = new float[size * size];
+		float scale = 1f / ((float) size * size);
+		for (int y = 0; y < _height; y++) {
+			for (int x = 0; x < _width; x++)
+				re[y * size + x] = _weights[y * _width + x] * scale;
+		}
+		FourierTransform transform = FourierTransform.forSize(size);
+		for (int y = 0; y < _height; y++)
+			transform.transform(re, im, y * size, false);
+		float[] columnRe = new float[size];
+		float[] columnIm = new float[size];
+		for (int x = 0; x < size; x++) {
+			for (int y = 0; y < size; y++) {
+				columnRe[y] = re[y * size + x];
+				columnIm[y] = im[y * size + x];
+			}
+			transform.transform(columnRe, columnIm, 0, false);
+			for (int y = 0; y < size; y++) {
+				re[y * size + x] = columnRe[y];
+				im[y * size + x] = columnIm[y];
+			}
+		}
+		spectrum = new float[][]{re, im};
+		_spectra.put(size, spectrum);
+		return spectrum;
+	}
+}
@@ -0,0 +1,237 @@
+package com.enrique.stackblur;
+
+import java.util.Locale;
+
+/**
+ * Where the time of one blur went.
+ * <p/>
+ * Handed to a {@link Listener} once the blur is done, from the thread that
+ * asked for it. Without a listener nothing is measured: processes share a
+ * disabled instance whose methods return right away, without reading the
+ * clock.
+ * <p/>
+ * The listener gets plain nanosecond values, ready to be recorded into a
+ * histogram, e.g. HdrHistogram's {@code recordValue(metrics.getTotalNanos())}
+ * or one histogram per {@link Stage}.
+ */
+public final class BlurMetrics {
+
+	public enum Stage {
+		/** copying the pixels out of the source bitmap */
+		GET_PIXELS(false),
+		/** the row pass, the only pass of motion blurs, or the whole native blur */
+		HORIZONTAL(true),
+		/** the column pass */
+		VERTICAL(true),
+		/** resampling the image around the center for radial and circular blurs */
+		POLAR_TRANSFORM(false),
+		/** resampling it back */
+		INVERSE_TRANSFORM(false),
+		/** building the summed-area table of the image */
+		SUMMED_AREA_TABLE(true),
+		/** averaging the box of every pixel out of the summed-area table */
+		BOX_QUERIES(true),
+		/** halving the image down a pyramid */
+		DOWNSAMPLE(true),
+		/** doubling it back up */
+		UPSAMPLE(true),
+		/** both passes of a two dimensional kernel, band of columns by band of columns, or a direct convolution */
+		CONVOLUTION(true),
+		/** transforming a user kernel, once per kernel and tile size */
+		KERNEL_SPECTRUM(false),
+		/** creating or copying the result bitmap */
+		CREATE_BITMAP(false);
+
+		/**
+		 * Whether the stage is split into stripes on the executor
+		 */
+		final boolean parallel;
+
+		Stage(boolean parallel) {
+			this.parallel = parallel;
+		}
+	}
+
+	public interface Listener {
+		/**
+		 * Called once per blur, on the thread that asked for it. The metrics
+		 * object is not reused, it may be kept.
+		 */
+		void onBlurMeasured(BlurMetrics metrics);
+	}
+
+	static final BlurMetrics DISABLED = new BlurMetrics(null, null, 0, 0, 0, 0);
+
+	private final Listener _listener;
+	private final String _process;
+	private final int _width;
+	private final int _height;
+	private final float _radius;
+	private final int _parallelism;
+	private final long _start;
+	private final long[] _stageNanos = new long[Stage.values().length];
+	private long _totalNanos;
+	private long _allocatedBytes;
+	private long _busyNanos;
+
+	private BlurMetrics(Listener listener, String process, int width, int height, float radius, int parallelism) {
+		_listener = listener;
+		_process = process;
+		_width = width;
+		_height = height;
+		_radius = radius;
+		_parallelism = parallelism;
+		_start = listener == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Start measuring a blur.
+	 * @param listener null disables measuring
+	 * @param process name of the blur, as reported by {@link #getProcess()}
+	 */
+	static BlurMetrics begin(Listener listener, String process, int width, int height, float radius, int parallelism) {
+		if (listener == null)
+			return DISABLED;
+		return new BlurMetrics(listener, process, width, height, radius, parallelism);
+	}
+
+	boolean isEnabled() {
+		return _listener != null;
+	}
+
+	/**
+	 * @return the current time, to be passed to {@link #lap} or {@link #addBusy}
+	 */
+	long mark() {
+		return _listener == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Add the time since {@code mark} to a stage.
+	 * @return the current time, the mark of the next stage
+	 */
+	long lap(Stage stage, long mark) {
+		if (_listener == null)
+			return 0;
+		long now = System.nanoTime();
+		synchronized (this) {
+			_stageNanos[stage.ordinal()] += now - mark;
+		}
+		return now;
+	}
+
+	/**
+	 * Count the time a stripe spent working since {@code mark}. Called from
+	 * the executor threads.
+	 */
+	void addBusy(long mark) {
+		if (_listener == null)
+			return;
+		long nanos = System.nanoTime() - mark;
+		synchronized (this) {
+			_busyNanos += nanos;
+		}
+	}
+
+	void addAllocated(long bytes) {
+		if (_listener == null)
+			return;
+		synchronized (this) {
+			_allocatedBytes += bytes;
+		}
+	}
+
+	/**
+	 * Stop the clock and hand the metrics to the listener
+	 */
+	void end() {
+		if (_listener == null)
+			return;
+		synchronized (this) {
+			_totalNanos = System.nanoTime() - _start;
+		}
+		_listener.onBlurMeasured(this);
+	}
+
+	/**
+	 * @return the blur that was measured, e.g. "StackJavaBlurProcess"
+	 */
+	public String getProcess() {
+		return _process;
+	}
+
+	public int getWidth() {
+		return _width;
+	}
+
+	public int getHeight() {
+		return _height;
+	}
+
+	public float getRadius() {
+		return _radius;
+	}
+
+	/**
+	 * @return number of stripes each pass was split into
+	 */
+	public int getParallelism() {
+		return _parallelism;
+	}
+
+	public synchronized long getTotalNanos() {
+		return _totalNanos;
+	}
+
+	/**
+	 * @return time spent in a stage, 0 if the blur doesn't have it
+	 */
+	public synchronized long getStageNanos(Stage stage) {
+		return _stageNanos[stage.ordinal()];
+	}
+
+	/**
+	 * @return bytes of pixel arrays and bitmaps allocated by the blur;
+	 * buffers reused from the pool are not counted
+	 */
+	public synchronized long getAllocatedBytes() {
+		return _allocatedBytes;
+	}
+
+	/**
+	 * @return time the stripes spent working, summed over all threads
+	 */
+	public synchronized long getBusyNanos() {
+		return _busyNanos;
+	}
+
+	/**
+	 * @return how much of the threads available to the striped stages were
+	 * actually used, from 0 to 1, or NaN when the stripes can't be observed
+	 * (native blurs)
+	 */
+	public synchronized float getThreadUtilization() {
+		long passes = 0;
+		for (Stage stage : Stage.values()) {
+			if (stage.parallel)
+				passes += _stageNanos[stage.ordinal()];
+		}
+		if (_busyNanos == 0 || passes == 0)
+			return Float.NaN;
+		return Math.min(1f, (float) _busyNanos / ((float) passes * _parallelism));
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder(String.format(Locale.US, "%s %dx%d r=%.1f: %.2fms",
+				_process, _width, _height, _radius, _totalNanos / 1e6));
+		for (Stage stage : Stage.values()) {
+			long nanos = _stageNanos[stage.ordinal()];
+			if (nanos > 0)
+				sb.append(String.format(Locale.US, " %s=%.2fms", stage, nanos / 1e6));
+		}
+		sb.append(String.format(Locale.US, " allocated=%dKB threads=%d utilization=%.0f%%",
+				_allocatedBytes / 1024, _parallelism, getThreadUtilization() * 100));
+		return sb.toString();
+	}
+}
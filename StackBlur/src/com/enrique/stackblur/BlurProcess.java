@@ -17,4 +17,10 @@ interface BlurProcess {
 	public static int TYPE_RadialBlur=5;
 	public static int TYPE_CircularBlur=6;
     public Bitmap blur(Bitmap original, float radius);
+
+	/**
+	 * Report the timings of the following blurs to a listener, or stop with null.
+	 * Measuring is off by default.
+	 */
+	public void setMetricsListener(BlurMetrics.Listener listener);
 }
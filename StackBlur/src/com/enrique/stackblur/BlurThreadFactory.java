@@ -0,0 +1,57 @@
+package com.enrique.stackblur;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Threads of the library: named, at an {@link android.os.Process} priority,
+ * daemon or not. Used for the pools of {@link BlurExecutor.Builder} and for
+ * the single threads that decode, encode or dispatch in the background.
+ */
+final class BlurThreadFactory implements ThreadFactory {
+
+	/**
+	 * Slightly below normal, so blurring doesn't compete with the UI and render threads
+	 */
+	static final int BLUR_PRIORITY = android.os.Process.THREAD_PRIORITY_DEFAULT
+			+ android.os.Process.THREAD_PRIORITY_LESS_FAVORABLE;
+
+	private final String _name;
+	private final boolean _numbered;
+	private final int _priority;
+	private final boolean _daemon;
+	private int _count;
+
+	/**
+	 * @param numbered call the threads {@code name-1}, {@code name-2}... rather than all {@code name}
+	 */
+	BlurThreadFactory(String name, boolean numbered, int priority, boolean daemon) {
+		_name = name;
+		_numbered = numbered;
+		_priority = priority;
+		_daemon = daemon;
+	}
+
+	/**
+	 * An executor with a single daemon thread called {@code name}, which
+	 * never stops
+	 */
+	static ExecutorService singleThread(String name, int priority) {
+		return Executors.newSingleThreadExecutor(new BlurThreadFactory(name, false, priority, true));
+	}
+
+	@Override
+	public synchronized Thread newThread(final Runnable r) {
+		final int priority = _priority;
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(priority);
+				r.run();
+			}
+		}, _numbered ? _name + "-" + (++_count) : _name);
+		thread.setDaemon(_daemon);
+		return thread;
+	}
+}
@@ -0,0 +1,288 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Lens blur: every pixel spreads into a flat disc, so small highlights turn
+ * into round bokeh instead of soft Gaussian spots.
+ * <p/>
+ * A disc is not separable, but it is close to the real part of a sum of two
+ * separable complex Gaussians, exp((-a + ib) x^2) along x times the same
+ * along y (Olli Niemitalo's fit, as used for circular separable depth of
+ * field in games). Each component is a row pass giving a complex value per
+ * channel, then a column pass whose complex weights fold into two real ones,
+ * so a pixel costs O(radius) instead of the O(radius^2) of a disc kernel.
+ * <p/>
+ * The columns are cut into narrow bands, each convolved along its rows and
+ * then along its columns, so the eight floats per pixel of a component's
+ * intermediate values are only held for a band at a time. Bands are spread
+ * over the {@link BlurExecutor}.
+ * <p/>
+ * With a highlight boost, the colors are raised to the power 1 + boost
+ * before the blur and brought back after it, which weighs bright pixels
+ * more: a lamp in a dark scene keeps a bright disc rather than fading into
+ * its surroundings. Alpha is always blurred as is.
+ */
+class BokehBlurProcess implements BlurProcess {
+
+	/**
+	 * a, b, real weight and imaginary weight of the components
+	 */
+	private static final double[][] COMPONENTS = {
+			{0.886528, 5.268909, 0.411259, -0.548794},
+			{1.960518, 1.558213, 0.513282, 4.561110}
+	};
+
+	/**
+	 * The fit is made for x in [-1.2, 1.2]: the kernel of radius r spans it
+	 * with 2r + 1 taps, which puts the edge of the disc close to r
+	 */
+	private static final double KERNEL_EXTENT = 1.2;
+
+	/**
+	 * Columns convolved at a time by a task
+	 */
+	private static final int BAND_WIDTH = 32;
+
+	private final float _highlightBoost;
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
+
+	/**
+	 * @param highlightBoost 0 for none; the larger, the brighter the highlights stay
+	 */
+	BokehBlurProcess(float highlightBoost) {
+		this(highlightBoost, BlurExecutor.getDefault());
+	}
+
+	BokehBlurProcess(float highlightBoost, BlurExecutor executor) {
+		_highlightBoost = Math.max(0, highlightBoost);
+		_executor = executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
+	/**
+	 * @param radius radius of the disc, in pixels
+	 */
+	@Override
+	public Bitmap blur(Bitmap original, float radius) {
+		int w = original.getWidth();
+		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "BokehBlurProcess", w, h, radius, cores);
+		long mark = metrics.mark();
+		int[] src = PixelArrayPool.acquire(w * h, metrics);
+		int[] dst = PixelArrayPool.acquire(w * h, metrics);
+		original.getPixels(src, 0, w, 0, 0, w, h);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
+
+		int r = Math.max(1, Math.round(radius));
+		float[][] rowKernels = new float[COMPONENTS.length][];
+		float[][] columnKernels = new float[COMPONENTS.length][];
+		kernels(r, rowKernels, columnKernels);
+
+		// colors to the power 1 + boost and back, alpha linear
+		float[] power = new float[256];
+		float[] thresholds = new float[256];
+		for (int c = 0; c < 256; c++) {
+			power[c] = (float) Math.pow(c / 255.0, 1 + _highlightBoost);
+			thresholds[c] = c == 0 ? Float.NEGATIVE_INFINITY : (float) Math.pow((c - 0.5) / 255.0, 1 + _highlightBoost);
+		}
+
+		int tasks = Math.max(1, Math.min(cores, (w + BAND_WIDTH - 1) / BAND_WIDTH));
+		ArrayList<BandTask> bands = new ArrayList<BandTask>(tasks);
+		for (int i = 0; i < tasks; i++) {
+			bands.add(new BandTask(src, dst, w, h, r, rowKernels, columnKernels, power, thresholds,
+					i * w / tasks, (i + 1) * w / tasks, metrics));
+		}
+		try {
+			_executor.invokeAll(bands);
+		} catch (InterruptedException e) {
+			// bands may still be running: the arrays can't go back to the pool
+			return null;
+		}
+		mark = metrics.lap(BlurMetrics.Stage.CONVOLUTION, mark);
+
+		Bitmap blurred = Bitmap.createBitmap(dst, 0, w, w, h, Bitmap.Config.ARGB_8888);
+		PixelArrayPool.release(src);
+		PixelArrayPool.release(dst);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
+	}
+
+	/**
+	 * Fill the kernels of radius r of every component: the row kernel as
+	 * interleaved real and imaginary weights, and the column kernel as the two
+	 * real weights of the real and imaginary parts of the row results. The
+	 * whole two dimensional kernel sums to 1.
+	 */
+	static void kernels(int r, float[][] rowKernels, float[][] columnKernels) {
+		int n = 2 * r + 1;
+		double[][] re = new double[COMPONENTS.length][n];
+		double[][] im = new double[COMPONENTS.length][n];
+		double total = 0;
+		for (int k = 0; k < COMPONENTS.length; k++) {
+			double a = COMPONENTS[k][0], b = COMPONENTS[k][1];
+			double sumRe = 0, sumIm = 0;
+			for (int i = 0; i < n; i++) {
+				double x = (i - r) * KERNEL_EXTENT / r;
+				double envelope = Math.exp(-a * x * x);
+				re[k][i] = envelope * Math.cos(b * x * x);
+				im[k][i] = envelope * Math.sin(b * x * x);
+				sumRe += re[k][i];
+				sumIm += im[k][i];
+			}
+			// the 2-D sum of the component is the square of its 1-D sum
+			total += COMPONENTS[k][2] * (sumRe * sumRe - sumIm * sumIm) + COMPONENTS[k][3] * 2 * sumRe * sumIm;
+		}
+		for (int k = 0; k < COMPONENTS.length; k++) {
+			double weightRe = COMPONENTS[k][2] / total, weightIm = COMPONENTS[k][3] / total;
+			rowKernels[k] = new float[2 * n];
+			columnKernels[k] = new float[2 * n];
+			for (int i = 0; i < n; i++) {
+				rowKernels[k][2 * i] = (float) re[k][i];
+				rowKernels[k][2 * i + 1] = (float) im[k][i];
+				// weightRe * Re(g h) + weightIm * Im(g h), for row result h and column weight g
+				columnKernels[k][2 * i] = (float) (weightRe * re[k][i] + weightIm * im[k][i]);
+				columnKernels[k][2 * i + 1] = (float) (weightIm * re[k][i] - weightRe * im[k][i]);
+			}
+		}
+	}
+
+	private static class BandTask implements Callable<Void> {
+		private final int[] _src;
+		private final int[] _dst;
+		private final int _w;
+		private final int _h;
+		private final int _radius;
+		private final float[][] _rowKernels;
+		private final float[][] _columnKernels;
+		private final float[] _power;
+		private final float[] _thresholds;
+		private final int _firstColumn;
+		private final int _endColumn;
+		private final BlurMetrics _metrics;
+
+		BandTask(int[] src, int[] dst, int w, int h, int radius, float[][] rowKernels, float[][] columnKernels,
+		         float[] power, float[] thresholds, int firstColumn, int endColumn, BlurMetrics metrics) {
+			_src = src;
+			_dst = dst;
+			_w = w;
+			_h = h;
+			_radius = radius;
+			_rowKernels = rowKernels;
+			_columnKernels = columnKernels;
+			_power = power;
+			_thresholds = thresholds;
+			_firstColumn = firstColumn;
+			_endColumn = endColumn;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			int r = _radius, n = 2 * r + 1;
+			int maxBand = Math.min(BAND_WIDTH, _endColumn - _firstColumn);
+			// a, r, g, b of the band and r pixels on each side
+			float[] row = new float[4 * (maxBand + 2 * r)];
+			// real and imaginary parts of a, r, g, b for each component
+			float[][] planes = new float[_rowKernels.length][8 * maxBand * _h];
+			int[] rowOffsets = new int[_h + 2 * r];
+			// a, r, g, b of an output row of the band
+			float[] sums = new float[4 * maxBand];
+			_metrics.addAllocated(4L * (row.length + planes.length * planes[0].length + sums.length));
+
+			for (int x0 = _firstColumn; x0 < _endColumn; x0 += BAND_WIDTH) {
+				int bw = Math.min(BAND_WIDTH, _endColumn - x0);
+				for (int y = 0; y < _h; y++) {
+					for (int i = 0, x = x0 - r; i < bw + 2 * r; i++, x++) {
+						int p = _src[y * _w + (x < 0 ? 0 : x >= _w ? _w - 1 : x)];
+						row[4 * i] = (p >>> 24) / 255f;
+						row[4 * i + 1] = _power[(p >>> 16) & 0xff];
+						row[4 * i + 2] = _power[(p >>> 8) & 0xff];
+						row[4 * i + 3] = _power[p & 0xff];
+					}
+					for (int k = 0; k < _rowKernels.length; k++) {
+						float[] kernel = _rowKernels[k];
+						float[] plane = planes[k];
+						for (int x = 0, o = 8 * y * bw; x < bw; x++, o += 8) {
+							float aRe = 0, aIm = 0, rRe = 0, rIm = 0, gRe = 0, gIm = 0, bRe = 0, bIm = 0;
+							for (int i = 0, j = 4 * x; i < n; i++, j += 4) {
+								float re = kernel[2 * i], im = kernel[2 * i + 1];
+								aRe += re * row[j];
+								aIm += im * row[j];
+								rRe += re * row[j + 1];
+								rIm += im * row[j + 1];
+								gRe += re * row[j + 2];
+								gIm += im * row[j + 2];
+								bRe += re * row[j + 3];
+								bIm += im * row[j + 3];
+							}
+							plane[o] = aRe;
+							plane[o + 1] = aIm;
+							plane[o + 2] = rRe;
+							plane[o + 3] = rIm;
+							plane[o + 4] = gRe;
+							plane[o + 5] = gIm;
+							plane[o + 6] = bRe;
+							plane[o + 7] = bIm;
+						}
+					}
+				}
+
+				// rows beyond the edges repeat the edge rows
+				for (int i = 0; i < _h + 2 * r; i++) {
+					int y = i - r;
+					rowOffsets[i] = 8 * bw * (y < 0 ? 0 : y >= _h ? _h - 1 : y);
+				}
+				for (int y = 0; y < _h; y++) {
+					Arrays.fill(sums, 0, 4 * bw, 0);
+					for (int k = 0; k < _columnKernels.length; k++) {
+						float[] kernel = _columnKernels[k];
+						float[] plane = planes[k];
+						for (int i = 0; i < n; i++) {
+							float wRe = kernel[2 * i], wIm = kernel[2 * i + 1];
+							// the real and imaginary parts of a channel are next to each other
+							for (int j = 0, o = rowOffsets[y + i]; j < 4 * bw; j++, o += 2)
+								sums[j] += wRe * plane[o] + wIm * plane[o + 1];
+						}
+					}
+					for (int x = 0; x < bw; x++) {
+						int alpha = (int) (sums[4 * x] * 255 + 0.5f);
+						alpha = alpha < 0 ? 0 : alpha > 255 ? 255 : alpha;
+						_dst[y * _w + x0 + x] = (alpha << 24) | (unpower(sums[4 * x + 1]) << 16) |
+								(unpower(sums[4 * x + 2]) << 8) | unpower(sums[4 * x + 3]);
+					}
+				}
+			}
+			_metrics.addBusy(mark);
+			return null;
+		}
+
+		/**
+		 * @return the 8 bit color whose power is nearest to v, by binary search
+		 */
+		private int unpower(float v) {
+			int low = 0, high = 255;
+			while (low < high) {
+				int mid = (low + high + 1) >> 1;
+				if (_thresholds[mid] <= v)
+					low = mid;
+				else
+					high = mid - 1;
+			}
+			return low;
+		}
+	}
+}
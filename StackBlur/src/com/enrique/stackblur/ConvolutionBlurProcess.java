@@ -0,0 +1,446 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Convolution with any {@link BlurKernel}.
+ * <p/>
+ * Kernels with few taps are applied directly, a row stripe per thread. Larger
+ * ones go through fast Fourier transforms, with overlap-add: the image is cut
+ * into blocks that, zero padded to a power of two tile, leave room for the
+ * kernel to spread without wrapping around. A tile is transformed along its
+ * rows, then along its columns, multiplied by the spectrum of the kernel
+ * (cached in the kernel for each tile size) and transformed back; each of
+ * these steps is split into stripes on the {@link BlurExecutor}. Every
+ * transform carries two channels, one as the real and one as the imaginary
+ * part, since the kernel being real keeps them apart.
+ * <p/>
+ * Results of a row of tiles add up in a band of floats as high as a tile;
+ * rows of the band that no further tile reaches are written out, the rest
+ * moves up for the next row of tiles. Beyond the edges of the image its
+ * edge pixels repeat.
+ */
+class ConvolutionBlurProcess implements BlurProcess {
+
+	/**
+	 * Kernels with at most this many non zero weights are applied directly;
+	 * with more, the transforms cost less than the multiplications they save
+	 * (about even at 5x5 on a megapixel image)
+	 */
+	static final int DIRECT_MAX_TAPS = 32;
+
+	private static final int MIN_TILE = 64;
+	private static final int MAX_TILE = 512;
+
+	private final BlurKernel _kernel;
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
+
+	ConvolutionBlurProcess(BlurKernel kernel) {
+		this(kernel, BlurExecutor.getDefault());
+	}
+
+	ConvolutionBlurProcess(BlurKernel kernel, BlurExecutor executor) {
+		_kernel = kernel;
+		_executor = executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
+	/**
+	 * @param radius ignored, the kernel sets the blur
+	 */
+	@Override
+	public Bitmap blur(Bitmap original, float radius) {
+		int w = original.getWidth();
+		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		int kw = _kernel.getWidth(), kh = _kernel.getHeight();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "ConvolutionBlurProcess", w, h,
+				Math.max(kw, kh) / 2, cores);
+		long mark = metrics.mark();
+		int[] src = PixelArrayPool.acquire(w * h, metrics);
+		int[] dst = PixelArrayPool.acquire(w * h, metrics);
+		original.getPixels(src, 0, w, 0, 0, w, h);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
+
+		try {
+			if (_kernel.getTapCount() <= DIRECT_MAX_TAPS)
+				mark = convolveDirectly(src, dst, w, h, metrics, mark);
+			else
+				mark = convolveByTiles(src, dst, w, h, metrics, mark);
+		} catch (InterruptedException e) {
+			// stripes may still be running: the arrays can't go back to the pool
+			return null;
+		}
+
+		Bitmap blurred = Bitmap.createBitmap(dst, 0, w, w, h, Bitmap.Config.ARGB_8888);
+		PixelArrayPool.release(src);
+		PixelArrayPool.release(dst);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
+	}
+
+	private long convolveDirectly(int[] src, int[] dst, int w, int h, BlurMetrics metrics, long mark)
+			throws InterruptedException {
+		int kw = _kernel.getWidth(), kh = _kernel.getHeight();
+		int cx = kw / 2, cy = kh / 2;
+		float[] weights = _kernel.getWeights();
+		int taps = _kernel.getTapCount();
+		// the source pixel of weight (i, j) is at (cx - i, cy - j) from the output pixel
+		int[] dx = new int[taps];
+		int[] dy = new int[taps];
+		float[] tapWeights = new float[taps];
+		for (int j = 0, t = 0; j < kh; j++) {
+			for (int i = 0; i < kw; i++) {
+				if (weights[j * kw + i] != 0) {
+					dx[t] = cx - i;
+					dy[t] = cy - j;
+					tapWeights[t] = weights[j * kw + i];
+					t++;
+				}
+			}
+		}
+
+		int stripes = Math.max(1, Math.min(_executor.getParallelism(), h));
+		ArrayList<DirectTask> tasks = new ArrayList<DirectTask>(stripes);
+		for (int i = 0; i < stripes; i++)
+			tasks.add(new DirectTask(src, dst, w, h, dx, dy, tapWeights, i * h / stripes, (i + 1) * h / stripes, metrics));
+		_executor.invokeAll(tasks);
+		return metrics.lap(BlurMetrics.Stage.CONVOLUTION, mark);
+	}
+
+	private long convolveByTiles(int[] src, int[] dst, int w, int h, BlurMetrics metrics, long mark)
+			throws InterruptedException {
+		int kw = _kernel.getWidth(), kh = _kernel.getHeight();
+		int cx = kw / 2, cy = kh / 2;
+		int n = tileSize(w, h, kw, kh);
+		// input pixels per tile, the rest of the tile is where the kernel spreads them
+		int bw = n - kw + 1, bh = n - kh + 1;
+		float[][] spectrum = _kernel.getSpectrum(n);
+		mark = metrics.lap(BlurMetrics.Stage.KERNEL_SPECTRUM, mark);
+
+		Tile tile = new Tile(n);
+		float[] band = new float[4 * w * n];
+		metrics.addAllocated(16L * n * n + 4L * band.length);
+		int cores = _executor.getParallelism();
+		int stripes = Math.max(1, Math.min(cores, n));
+		ArrayList<TileTask> forward = new ArrayList<TileTask>(stripes);
+		ArrayList<TileTask> columns = new ArrayList<TileTask>(stripes);
+		ArrayList<TileTask> inverse = new ArrayList<TileTask>(stripes);
+		for (int i = 0; i < stripes; i++) {
+			int first = i * n / stripes, end = (i + 1) * n / stripes;
+			forward.add(new TileTask(TileTask.FORWARD_ROWS, tile, first, end, metrics));
+			columns.add(new TileTask(TileTask.COLUMNS, tile, first, end, metrics));
+			inverse.add(new TileTask(TileTask.INVERSE_ROWS, tile, first, end, metrics));
+		}
+		tile.src = src;
+		tile.w = w;
+		tile.h = h;
+		tile.blockWidth = bw;
+		tile.blockHeight = bh;
+		tile.spectrum = spectrum;
+		tile.band = band;
+
+		// the output pixels of row 0 and column 0 of a tile are (left - cx, top - cy)
+		for (int top = cy - kh + 1; top <= h - 1 + cy; top += bh) {
+			tile.top = top;
+			for (int left = cx - kw + 1; left <= w - 1 + cx; left += bw) {
+				tile.left = left;
+				tile.outputLeft = left - cx;
+				_executor.invokeAll(forward);
+				mark = metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
+				_executor.invokeAll(columns);
+				mark = metrics.lap(BlurMetrics.Stage.VERTICAL, mark);
+				_executor.invokeAll(inverse);
+				mark = metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
+			}
+
+			// no later row of tiles reaches the first bh rows of the band
+			int outputTop = top - cy;
+			for (int t = 0; t < bh; t++) {
+				int y = outputTop + t;
+				if (y < 0 || y >= h)
+					continue;
+				for (int x = 0, b = 4 * t * w; x < w; x++, b += 4) {
+					dst[y * w + x] = (clamp(band[b]) << 24) | (clamp(band[b + 1]) << 16) |
+							(clamp(band[b + 2]) << 8) | clamp(band[b + 3]);
+				}
+			}
+			System.arraycopy(band, 4 * bh * w, band, 0, 4 * (n - bh) * w);
+			Arrays.fill(band, 4 * (n - bh) * w, band.length, 0);
+			mark = metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
+		}
+		return mark;
+	}
+
+	/**
+	 * @return the power of two tile size, large enough for the kernel, that
+	 * needs the fewest operations for the whole image
+	 */
+	static int tileSize(int w, int h, int kw, int kh) {
+		int smallest = MIN_TILE;
+		while (smallest < 2 * Math.max(kw, kh))
+			smallest *= 2;
+		int best = smallest;
+		double bestCost = Double.MAX_VALUE;
+		for (int n = smallest; n <= Math.max(smallest, MAX_TILE); n *= 2) {
+			long tilesX = (w + kw - 1 + n - kw) / (n - kw + 1);
+			long tilesY = (h + kh - 1 + n - kh) / (n - kh + 1);
+			double cost = (double) tilesX * tilesY * n * n * Integer.numberOfTrailingZeros(n);
+			if (cost < bestCost) {
+				bestCost = cost;
+				best = n;
+			}
+		}
+		return best;
+	}
+
+	private static int clamp(float v) {
+		int c = (int) (v + 0.5f);
+		return c < 0 ? 0 : c > 255 ? 255 : c;
+	}
+
+	/**
+	 * The tile being transformed and what its tasks need to know about it
+	 */
+	private static final class Tile {
+		final int size;
+		/** alpha + i red */
+		final float[] re1, im1;
+		/** green + i blue */
+		final float[] re2, im2;
+		final FourierTransform transform;
+
+		int[] src;
+		int w, h;
+		int blockWidth, blockHeight;
+		float[][] spectrum;
+		float[] band;
+		/** source pixel of the tile's first pixel */
+		int left, top;
+		/** output column of the tile's first column */
+		int outputLeft;
+
+		Tile(int size) {
+			this.size = size;
+			re1 = new float[size * size];
+			im1 = new float[size * size];
+			re2 = new float[size * size];
+			im2 = new float[size * size];
+			transform = FourierTransform.forSize(size);
+		}
+	}
+
+	private static class TileTask implements Callable<Void> {
+		static final int FORWARD_ROWS = 0;
+		static final int COLUMNS = 1;
+		static final int INVERSE_ROWS = 2;
+
+		private final int _step;
+		private final Tile _tile;
+		private final int _first;
+		private final int _end;
+		private final BlurMetrics _metrics;
+		private float[] _columnRe;
+		private float[] _columnIm;
+
+		/**
+		 * @param first first row, or column for {@link #COLUMNS}
+		 */
+		TileTask(int step, Tile tile, int first, int end, BlurMetrics metrics) {
+			_step = step;
+			_tile = tile;
+			_first = first;
+			_end = end;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			if (_step == FORWARD_ROWS)
+				forwardRows();
+			else if (_step == COLUMNS)
+				columns();
+			else
+				inverseRows();
+			_metrics.addBusy(mark);
+			return null;
+		}
+
+		/**
+		 * Load the block of source pixels of the rows and transform them
+		 */
+		private void forwardRows() {
+			Tile t = _tile;
+			int n = t.size;
+			for (int v = _first; v < _end; v++) {
+				int o = v * n;
+				if (v >= t.blockHeight) {
+					Arrays.fill(t.re1, o, o + n, 0);
+					Arrays.fill(t.im1, o, o + n, 0);
+					Arrays.fill(t.re2, o, o + n, 0);
+					Arrays.fill(t.im2, o, o + n, 0);
+					continue;
+				}
+				int y = t.top + v;
+				int row = (y < 0 ? 0 : y >= t.h ? t.h - 1 : y) * t.w;
+				for (int u = 0; u < n; u++) {
+					if (u >= t.blockWidth) {
+						t.re1[o + u] = t.im1[o + u] = t.re2[o + u] = t.im2[o + u] = 0;
+						continue;
+					}
+					int x = t.left + u;
+					int p = t.src[row + (x < 0 ? 0 : x >= t.w ? t.w - 1 : x)];
+					t.re1[o + u] = p >>> 24;
+					t.im1[o + u] = (p >>> 16) & 0xff;
+					t.re2[o + u] = (p >>> 8) & 0xff;
+					t.im2[o + u] = p & 0xff;
+				}
+				t.transform.transform(t.re1, t.im1, o, false);
+				t.transform.transform(t.re2, t.im2, o, false);
+			}
+		}
+
+		/**
+		 * Transform the columns, multiply them by the kernel and transform them back
+		 */
+		private void columns() {
+			Tile t = _tile;
+			int n = t.size;
+			if (_columnRe == null) {
+				_columnRe = new float[n];
+				_columnIm = new float[n];
+			}
+			float[] kre = t.spectrum[0], kim = t.spectrum[1];
+			for (int u = _first; u < _end; u++) {
+				column(t.re1, t.im1, u, n, kre, kim);
+				column(t.re2, t.im2, u, n, kre, kim);
+			}
+		}
+
+		private void column(float[] re, float[] im, int u, int n, float[] kre, float[] kim) {
+			float[] cre = _columnRe, cim = _columnIm;
+			for (int v = 0, o = u; v < n; v++, o += n) {
+				cre[v] = re[o];
+				cim[v] = im[o];
+			}
+			_tile.transform.transform(cre, cim, 0, false);
+			for (int v = 0, o = u; v < n; v++, o += n) {
+				float r = cre[v] * kre[o] - cim[v] * kim[o];
+				float i = cre[v] * kim[o] + cim[v] * kre[o];
+				cre[v] = r;
+				cim[v] = i;
+			}
+			_tile.transform.transform(cre, cim, 0, true);
+			for (int v = 0, o = u; v < n; v++, o += n) {
+				re[o] = cre[v];
+				im[o] = cim[v];
+			}
+		}
+
+		/**
+		 * Transform the rows back and add them to the band
+		 */
+		private void inverseRows() {
+			Tile t = _tile;
+			int n = t.size;
+			int firstU = Math.max(0, -t.outputLeft);
+			int endU = Math.min(n, t.w - t.outputLeft);
+			for (int v = _first; v < _end; v++) {
+				int o = v * n;
+				t.transform.transform(t.re1, t.im1, o, true);
+				t.transform.transform(t.re2, t.im2, o, true);
+				for (int u = firstU, b = 4 * (v * t.w + t.outputLeft + firstU); u < endU; u++, b += 4) {
+					t.band[b] += t.re1[o + u];
+					t.band[b + 1] += t.im1[o + u];
+					t.band[b + 2] += t.re2[o + u];
+					t.band[b + 3] += t.im2[o + u];
+				}
+			}
+		}
+	}
+
+	private static class DirectTask implements Callable<Void> {
+		private final int[] _src;
+		private final int[] _dst;
+		private final int _w;
+		private final int _h;
+		private final int[] _dx;
+		private final int[] _dy;
+		private final float[] _weights;
+		private final int _firstRow;
+		private final int _endRow;
+		private final BlurMetrics _metrics;
+
+		DirectTask(int[] src, int[] dst, int w, int h, int[] dx, int[] dy, float[] weights,
+		           int firstRow, int endRow, BlurMetrics metrics) {
+			_src = src;
+			_dst = dst;
+			_w = w;
+			_h = h;
+			_dx = dx;
+			_dy = dy;
+			_weights = weights;
+			_firstRow = firstRow;
+			_endRow = endRow;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			int taps = _weights.length;
+			int minDx = 0, maxDx = 0, minDy = 0, maxDy = 0;
+			int[] offsets = new int[taps];
+			for (int t = 0; t < taps; t++) {
+				minDx = Math.min(minDx, _dx[t]);
+				maxDx = Math.max(maxDx, _dx[t]);
+				minDy = Math.min(minDy, _dy[t]);
+				maxDy = Math.max(maxDy, _dy[t]);
+				offsets[t] = _dy[t] * _w + _dx[t];
+			}
+			for (int y = _firstRow; y < _endRow; y++) {
+				boolean innerRow = y + minDy >= 0 && y + maxDy < _h;
+				for (int x = 0, i = y * _w; x < _w; x++, i++) {
+					float a = 0, r = 0, g = 0, b = 0;
+					if (innerRow && x + minDx >= 0 && x + maxDx < _w) {
+						for (int t = 0; t < taps; t++) {
+							int p = _src[i + offsets[t]];
+							float k = _weights[t];
+							a += k * (p >>> 24);
+							r += k * ((p >>> 16) & 0xff);
+							g += k * ((p >>> 8) & 0xff);
+							b += k * (p & 0xff);
+						}
+					} else {
+						for (int t = 0; t < taps; t++) {
+							int sx = x + _dx[t], sy = y + _dy[t];
+							sx = sx < 0 ? 0 : sx >= _w ? _w - 1 : sx;
+							sy = sy < 0 ? 0 : sy >= _h ? _h - 1 : sy;
+							int p = _src[sy * _w + sx];
+							float k = _weights[t];
+							a += k * (p >>> 24);
+							r += k * ((p >>> 16) & 0xff);
+							g += k * ((p >>> 8) & 0xff);
+							b += k * (p & 0xff);
+						}
+					}
+					_dst[i] = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+				}
+			}
+			_metrics.addBusy(mark);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,387 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Pyramid blur for very large radii, after Marius Bjørge's dual Kawase filter
+ * ("Bandwidth-efficient rendering", SIGGRAPH 2015).
+ * <p/>
+ * The image is halved a few times with a 5 tap filter, then doubled back with
+ * an 8 tap filter. The taps are bilinear samples, as on a GPU; here every tap
+ * is turned into fixed 8 bit weights on the source pixels, one set per output pixel
+ * parity. Most of the work happens on the small levels, so a radius of a few
+ * hundred pixels costs about as much as a small stack blur and the full
+ * resolution image is only read once and written once.
+ * <p/>
+ * The number of levels comes from the radius and the tap offset is scaled
+ * in between, so the blur grows smoothly with the radius. Small radii, where
+ * a pyramid has no advantage, go to {@link StackJavaBlurProcess}. Level
+ * buffers come from the {@link PixelArrayPool}, each level is resampled in
+ * stripes on the {@link BlurExecutor}.
+ * <p/>
+ * Given the {@link SourcePyramid} of the image, the halving starts from one
+ * of its mipmaps instead of the full image: only the
+ * {@link #FILTERED_LEVELS} coarsest levels, which make most of the blur, are
+ * made with the 5 tap filter, the finer ones are the 2x2 averages already
+ * there. The image is then never read at full resolution.
+ */
+class DualKawaseBlurProcess implements BlurProcess {
+
+	/**
+	 * Below this radius the stack blur is used
+	 */
+	static final int MIN_RADIUS = 8;
+
+	/**
+	 * Tap offsets, in pixels of the level being sampled
+	 */
+	private static final float[] OFFSETS = {0.75f, 1f, 1.5f, 2f, 2.5f};
+
+	/**
+	 * Standard deviation of the pyramid for each of {@link #OFFSETS}, divided by
+	 * 2^levels (measured on impulses, it hardly changes from 2 levels on)
+	 */
+	private static final float[] SIGMA_SCALES = {0.60f, 0.73f, 0.93f, 1.15f, 1.33f};
+
+	/**
+	 * Levels always made with the 5 tap filter when starting from mipmaps
+	 */
+	static final int FILTERED_LEVELS = 2;
+
+	private final BlurExecutor _executor;
+	private final SourcePyramid _pyramid;
+	private BlurMetrics.Listener _metricsListener;
+
+	DualKawaseBlurProcess() {
+		this(BlurExecutor.getDefault());
+	}
+
+	DualKawaseBlurProcess(BlurExecutor executor) {
+		this(null, executor);
+	}
+
+	/**
+	 * @param pyramid mipmaps of the images to be blurred, or null; ignored for other images
+	 */
+	DualKawaseBlurProcess(SourcePyramid pyramid, BlurExecutor executor) {
+		_pyramid = pyramid;
+		_executor = executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
+	@Override
+	public Bitmap blur(Bitmap original, float radius) {
+		if (radius < MIN_RADIUS) {
+			BlurProcess stack = new StackJavaBlurProcess(_executor);
+			stack.setMetricsListener(_metricsListener);
+			return stack.blur(original, radius);
+		}
+		int w = original.getWidth();
+		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "DualKawaseBlurProcess", w, h, radius, cores);
+		long mark = metrics.mark();
+
+		// the stack blur of radius r is close to a Gaussian of sigma r / 2.4
+		float sigma = radius / 2.4f;
+		int maxLevels = 1;
+		while ((Math.max(w, h) - 1) >> maxLevels > 0)
+			maxLevels++;
+		// the fewest levels that get there with taps at most 2 pixels apart
+		int levels = 1;
+		while (levels < maxLevels && SIGMA_SCALES[SIGMA_SCALES.length - 2] * (1 << levels) < sigma)
+			levels++;
+		float offset = offsetFor(sigma / (1 << levels));
+
+		int[] widths = new int[levels + 1];
+		int[] heights = new int[levels + 1];
+		int[][] buffers = new int[levels + 1][];
+		widths[0] = w;
+		heights[0] = h;
+		for (int l = 1; l <= levels; l++) {
+			widths[l] = (widths[l - 1] + 1) / 2;
+			heights[l] = (heights[l - 1] + 1) / 2;
+		}
+		for (int l = 0; l <= levels; l++)
+			buffers[l] = PixelArrayPool.acquire(widths[l] * heights[l], metrics);
+		// the mipmaps have the same sizes as the levels
+		int first = 0;
+		if (_pyramid != null && _pyramid.getLevel(0) == original)
+			first = Math.max(0, Math.min(levels - FILTERED_LEVELS, _pyramid.getLevelCount() - 1));
+		Bitmap start = first > 0 ? _pyramid.getLevel(first) : original;
+		start.getPixels(buffers[first], 0, widths[first], 0, 0, widths[first], heights[first]);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
+
+		Kernel down = Kernel.downsample(offset);
+		Kernel[] up = Kernel.upsample(offset);
+		try {
+			for (int l = first + 1; l <= levels; l++) {
+				resample(buffers[l - 1], widths[l - 1], heights[l - 1], buffers[l], widths[l], heights[l],
+						new Kernel[]{down}, 1, metrics);
+			}
+			mark = metrics.lap(BlurMetrics.Stage.DOWNSAMPLE, mark);
+			for (int l = levels; l >= 1; l--) {
+				resample(buffers[l], widths[l], heights[l], buffers[l - 1], widths[l - 1], heights[l - 1],
+						up, 2, metrics);
+			}
+			mark = metrics.lap(BlurMetrics.Stage.UPSAMPLE, mark);
+		} catch (InterruptedException e) {
+			// stripes may still be running: the buffers can't go back to the pool
+			return null;
+		}
+
+		Bitmap blurred = Bitmap.createBitmap(buffers[0], 0, w, w, h, Bitmap.Config.ARGB_8888);
+		for (int[] buffer : buffers)
+			PixelArrayPool.release(buffer);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
+	}
+
+	/**
+	 * @return the tap offset giving this standard deviation per 2^levels,
+	 * interpolated in {@link #SIGMA_SCALES}
+	 */
+	private static float offsetFor(float sigmaScale) {
+		if (sigmaScale <= SIGMA_SCALES[0])
+			return OFFSETS[0];
+		for (int i = 1; i < SIGMA_SCALES.length; i++) {
+			if (sigmaScale <= SIGMA_SCALES[i]) {
+				float t = (sigmaScale - SIGMA_SCALES[i - 1]) / (SIGMA_SCALES[i] - SIGMA_SCALES[i - 1]);
+				return OFFSETS[i - 1] + t * (OFFSETS[i] - OFFSETS[i - 1]);
+			}
+		}
+		return OFFSETS[OFFSETS.length - 1];
+	}
+
+	private void resample(int[] src, int sw, int sh, int[] dst, int dw, int dh, Kernel[] kernels, int scale,
+	                      BlurMetrics metrics) throws InterruptedException {
+		int stripes = Math.min(_executor.getParallelism(), dh);
+		ArrayList<ResampleTask> tasks = new ArrayList<ResampleTask>(stripes);
+		for (int i = 0; i < stripes; i++) {
+			tasks.add(new ResampleTask(src, sw, sh, dst, dw, kernels, scale,
+					i * dh / stripes, (i + 1) * dh / stripes, metrics));
+		}
+		_executor.invokeAll(tasks);
+	}
+
+	/**
+	 * Weights of the source pixels around an output pixel, with the pixel
+	 * offsets relative to the source pixel under it. Weights are in 1/256 and
+	 * add up to exactly 256, so two channels can be summed per int.
+	 */
+	static final class Kernel {
+		final int[] dx;
+		final int[] dy;
+		final int[] weights;
+		final int minDx, maxDx, minDy, maxDy;
+
+		private Kernel(int[] dx, int[] dy, int[] weights) {
+			this.dx = dx;
+			this.dy = dy;
+			this.weights = weights;
+			int x0 = 0, x1 = 0, y0 = 0, y1 = 0;
+			for (int k = 0; k < weights.length; k++) {
+				x0 = Math.min(x0, dx[k]);
+				x1 = Math.max(x1, dx[k]);
+				y0 = Math.min(y0, dy[k]);
+				y1 = Math.max(y1, dy[k]);
+			}
+			minDx = x0;
+			maxDx = x1;
+			minDy = y0;
+			maxDy = y1;
+		}
+
+		/**
+		 * Output pixel i covers source pixels 2i and 2i + 1: half of the weight at
+		 * their common corner, an eighth at each diagonal at {@code offset}
+		 * source pixels from it.
+		 */
+		static Kernel downsample(float offset) {
+			Builder b = new Builder();
+			b.tap(1, 1, 0, 0, 4);
+			b.tap(1, 1, -offset, -offset, 1);
+			b.tap(1, 1, offset, -offset, 1);
+			b.tap(1, 1, -offset, offset, 1);
+			b.tap(1, 1, offset, offset, 1);
+			return b.build();
+		}
+
+		/**
+		 * The four kernels of output pixels (2i + px, 2j + py), indexed by
+		 * {@code py * 2 + px}: a ring of taps around the output pixel, at
+		 * {@code offset / 2} source pixels along the axes and (weighted twice)
+		 * {@code offset / 4} along both.
+		 */
+		static Kernel[] upsample(float offset) {
+			Kernel[] kernels = new Kernel[4];
+			for (int py = 0; py < 2; py++) {
+				for (int px = 0; px < 2; px++) {
+					// center of the output pixel in source pixels, from the source pixel under it
+					float cx = px == 0 ? 0.25f : 0.75f;
+					float cy = py == 0 ? 0.25f : 0.75f;
+					float o = offset / 2;
+					Builder b = new Builder();
+					b.tap(cx, cy, -o, 0, 1);
+					b.tap(cx, cy, o, 0, 1);
+					b.tap(cx, cy, 0, -o, 1);
+					b.tap(cx, cy, 0, o, 1);
+					b.tap(cx, cy, -o / 2, -o / 2, 2);
+					b.tap(cx, cy, o / 2, -o / 2, 2);
+					b.tap(cx, cy, -o / 2, o / 2, 2);
+					b.tap(cx, cy, o / 2, o / 2, 2);
+					kernels[py * 2 + px] = b.build();
+				}
+			}
+			return kernels;
+		}
+
+		/**
+		 * Accumulates bilinear taps into weights on a small window of pixels
+		 */
+		private static final class Builder {
+			private static final int EXTENT = 4;
+			private static final int SIZE = 2 * EXTENT + 1;
+			private final float[] _grid = new float[SIZE * SIZE];
+			private float _total;
+
+			/**
+			 * @param cx position of the sample center, in source pixels from the
+			 *           top left corner of the source pixel under the output pixel
+			 * @param ox offset of the tap from the center
+			 */
+			void tap(float cx, float cy, float ox, float oy, float weight) {
+				// pixel centers are at k + 0.5
+				float x = cx + ox - 0.5f, y = cy + oy - 0.5f;
+				int x0 = (int) Math.floor(x), y0 = (int) Math.floor(y);
+				float fx = x - x0, fy = y - y0;
+				add(x0, y0, weight * (1 - fx) * (1 - fy));
+				add(x0 + 1, y0, weight * fx * (1 - fy));
+				add(x0, y0 + 1, weight * (1 - fx) * fy);
+				add(x0 + 1, y0 + 1, weight * fx * fy);
+				_total += weight;
+			}
+
+			private void add(int x, int y, float weight) {
+				_grid[(y + EXTENT) * SIZE + x + EXTENT] += weight;
+			}
+
+			Kernel build() {
+				int n = 0, largest = 0;
+				int[] quantized = new int[_grid.length];
+				int total = 0;
+				for (int i = 0; i < _grid.length; i++) {
+					quantized[i] = Math.round(_grid[i] * 256 / _total);
+					total += quantized[i];
+					if (quantized[i] > 0)
+						n++;
+					if (quantized[i] > quantized[largest])
+						largest = i;
+				}
+				// rounding must not take the sum past 256, or a channel spills into the next one
+				quantized[largest] += 256 - total;
+
+				int[] dx = new int[n];
+				int[] dy = new int[n];
+				int[] weights = new int[n];
+				int k = 0;
+				for (int i = 0; i < quantized.length; i++) {
+					if (quantized[i] > 0) {
+						dx[k] = i % SIZE - EXTENT;
+						dy[k] = i / SIZE - EXTENT;
+						weights[k] = quantized[i];
+						k++;
+					}
+				}
+				return new Kernel(dx, dy, weights);
+			}
+		}
+	}
+
+	private static class ResampleTask implements Callable<Void> {
+		private final int[] _src;
+		private final int _sw;
+		private final int _sh;
+		private final int[] _dst;
+		private final int _dw;
+		private final Kernel[] _kernels;
+		private final int _scale;
+		private final int _firstRow;
+		private final int _lastRow;
+		private final BlurMetrics _metrics;
+
+		/**
+		 * @param scale 1: output pixel x is over source pixel 2x (one kernel);
+		 *              2: output pixel x is over source pixel x / 2 (a kernel per parity)
+		 */
+		ResampleTask(int[] src, int sw, int sh, int[] dst, int dw, Kernel[] kernels, int scale,
+		             int firstRow, int lastRow, BlurMetrics metrics) {
+			_src = src;
+			_sw = sw;
+			_sh = sh;
+			_dst = dst;
+			_dw = dw;
+			_kernels = kernels;
+			_scale = scale;
+			_firstRow = firstRow;
+			_lastRow = lastRow;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			int xm = _sw - 1, ym = _sh - 1;
+			// source index offsets of the taps, for the pixels away from the edges
+			int[][] offsets = new int[_kernels.length][];
+			for (int i = 0; i < _kernels.length; i++) {
+				Kernel kernel = _kernels[i];
+				offsets[i] = new int[kernel.weights.length];
+				for (int k = 0; k < kernel.weights.length; k++)
+					offsets[i][k] = kernel.dy[k] * _sw + kernel.dx[k];
+			}
+			for (int y = _firstRow; y < _lastRow; y++) {
+				int sy = _scale == 1 ? 2 * y : y >> 1;
+				for (int x = 0; x < _dw; x++) {
+					int sx = _scale == 1 ? 2 * x : x >> 1;
+					int parity = _scale == 1 ? 0 : (y & 1) * 2 + (x & 1);
+					Kernel kernel = _kernels[parity];
+					int[] weights = kernel.weights;
+					// alpha and green in one int, red and blue in another, 16 bits each
+					int ag = 0, rb = 0;
+					if (sx + kernel.minDx >= 0 && sx + kernel.maxDx <= xm && sy + kernel.minDy >= 0 && sy + kernel.maxDy <= ym) {
+						int[] offset = offsets[parity];
+						int center = sy * _sw + sx;
+						for (int k = 0; k < weights.length; k++) {
+							int p = _src[center + offset[k]];
+							ag += weights[k] * ((p >>> 8) & 0xff00ff);
+							rb += weights[k] * (p & 0xff00ff);
+						}
+					} else {
+						int[] dx = kernel.dx, dy = kernel.dy;
+						for (int k = 0; k < weights.length; k++) {
+							int tx = sx + dx[k], ty = sy + dy[k];
+							tx = tx < 0 ? 0 : tx > xm ? xm : tx;
+							ty = ty < 0 ? 0 : ty > ym ? ym : ty;
+							int p = _src[ty * _sw + tx];
+							ag += weights[k] * ((p >>> 8) & 0xff00ff);
+							rb += weights[k] * (p & 0xff00ff);
+						}
+					}
+					_dst[y * _dw + x] = ((ag + 0x800080) & 0xff00ff00) | (((rb + 0x800080) >>> 8) & 0xff00ff);
+				}
+			}
+			_metrics.addBusy(mark);
+			return null;
+		}
+	}
+}
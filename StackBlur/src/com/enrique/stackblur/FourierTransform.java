@@ -0,0 +1,87 @@
+package com.enrique.stackblur;
+
+/**
+ * Radix 2 fast Fourier transform of a power of two number of complex values,
+ * real and imaginary parts in separate arrays. The twiddle factors and the
+ * bit reversal of a size are computed once and shared.
+ * <p/>
+ * The inverse transform is not divided by the size; callers fold the factor
+ * into something they multiply anyway.
+ */
+final class FourierTransform {
+
+	private static final FourierTransform[] sTransforms = new FourierTransform[31];
+
+	private final int _size;
+	private final float[] _cos;
+	private final float[] _sin;
+	private final int[] _reversed;
+
+	private FourierTransform(int size) {
+		_size = size;
+		_cos = new float[size / 2];
+		_sin = new float[size / 2];
+		for (int k = 0; k < size / 2; k++) {
+			double angle = -2 * Math.PI * k / size;
+			_cos[k] = (float) Math.cos(angle);
+			_sin[k] = (float) Math.sin(angle);
+		}
+		int bits = Integer.numberOfTrailingZeros(size);
+		_reversed = new int[size];
+		for (int i = 0; i < size; i++)
+			_reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+	}
+
+	/**
+	 * @param size a power of two
+	 */
+	static FourierTransform forSize(int size) {
+		if (size <= 0 || (size & (size - 1)) != 0)
+			throw new IllegalArgumentException(size + " is not a power of two");
+		int log = Integer.numberOfTrailingZeros(size);
+		synchronized (sTransforms) {
+			if (sTransforms[log] == null)
+				sTransforms[log] = new FourierTransform(size);
+			return sTransforms[log];
+		}
+	}
+
+	int getSize() {
+		return _size;
+	}
+
+	/**
+	 * Transform {@code size} values in place, from {@code offset}.
+	 * @param inverse transform back, without dividing by the size
+	 */
+	void transform(float[] re, float[] im, int offset, boolean inverse) {
+		int n = _size;
+		for (int i = 0; i < n; i++) {
+			int j = _reversed[i];
+			if (j > i) {
+				float t = re[offset + i];
+				re[offset + i] = re[offset + j];
+				re[offset + j] = t;
+				t = im[offset + i];
+				im[offset + i] = im[offset + j];
+				im[offset + j] = t;
+			}
+		}
+		float sign = inverse ? -1 : 1;
+		for (int half = 1; half < n; half <<= 1) {
+			int step = n / (2 * half);
+			for (int k = 0; k < half; k++) {
+				float wr = _cos[k * step], wi = sign * _sin[k * step];
+				for (int i = offset + k; i < offset + n; i += 2 * half) {
+					int j = i + half;
+					float tr = wr * re[j] - wi * im[j];
+					float ti = wr * im[j] + wi * re[j];
+					re[j] = re[i] - tr;
+					im[j] = im[i] - ti;
+					re[i] += tr;
+					im[i] += ti;
+				}
+			}
+		}
+	}
+}
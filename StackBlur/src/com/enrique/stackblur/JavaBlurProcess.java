@@ -1,12 +1,8 @@
 package com.enrique.stackblur;
 
-import android.annotation.TargetApi;
 import android.graphics.Bitmap;
-import android.os.Build;
-import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.concurrent.Callable;
 
 /**
@@ -94,130 +90,127 @@ class JavaBlurProcess implements BlurProcess {
 		return sizes;
 	}
 
-	private static void gaussBlur(int[] src, int[] srcOut, int w, int h, int r, int step, int index, int total) {
-		int[] bxs = boxesForGauss(r, 3);
-
-		boxBlur(src, srcOut, w, h, (bxs[0] - 1) / 2, step, index, total);
-		boxBlur(srcOut, src, w, h, (bxs[1] - 1) / 2, step, index, total);
-		boxBlur(src, srcOut, w, h, (bxs[2] - 1) / 2, step, index, total);
+	/**
+	 * @return the radii of the three boxes approximating a Gaussian of this sigma
+	 */
+	private static int[] boxRadiiForGauss(int sigma) {
+		int[] bxs = boxesForGauss(sigma, 3);
+		return new int[]{(bxs[0] - 1) / 2, (bxs[1] - 1) / 2, (bxs[2] - 1) / 2};
 	}
 
-	private static void boxBlur(int[] src, int[] srcOut, int w, int h, int r, int step, int index, int total) {
-		for (int i = 0; i < src.length; i++) srcOut[i] = src[i];
-		if(step==1)
-			boxBlurH(src, srcOut, w, h, r, index, total);
-		if(step==2)
-			boxBlurT(src, srcOut, w, h, r, index, total);
-	}
-
-	private static void boxBlurH(int[] src, int[] srcOut, int w, int h, int r, int index, int total) {
-		int wsum = (r + r + 1);
-		for (int i = index*h/total; i < (index+1)*h/total; i++) {
-			int ti = i * w, li = ti, ri = ti + r;
-			int val_r = 0, val_g = 0, val_b = 0;
-			int fv = src[ti], lv = src[ti + w - 1];
-			val_r = (r + 1) * ((fv >>> 16) & 0xff);
-			val_g = (r + 1) * ((fv >>> 8) & 0xff);
-			val_b = (r + 1) * (fv & 0xff);
-
-			for (int j = 0; j < r; j++) {
-				val_r += ((src[ti + j] >>> 16) & 0xff);
-				val_g += ((src[ti + j] >>> 8) & 0xff);
-				val_b += (src[ti + j] & 0xff);
-			}
-
-			try {
-				for (int j = 0; j <= r; j++) {
-					val_r += ((src[ti + r] >>> 16) & 0xff) - ((fv >>> 16) & 0xff);
-					val_g += ((src[ti + r] >>> 8) & 0xff) - ((fv >>> 8) & 0xff);
-					val_b += (src[ti + r] & 0xff) - (fv & 0xff);
-
-					srcOut[ti] = (int)
-							((src[ti] & 0xff000000) |
-									(((int) (val_r / wsum) & 0xff) << 16) |
-									(((int) (val_g / wsum) & 0xff) << 8) |
-									((int) (val_b / wsum) & 0xff));
-					ti++;
-				}
-
-				for (int j = r + 1; j < w - r; j++) {
-
-					val_r += ((src[ti + r] >>> 16) & 0xff) - ((src[ti - r] >>> 16) & 0xff);
-					val_g += ((src[ti + r] >>> 8) & 0xff) - ((src[ti - r] >>> 8) & 0xff);
-					val_b += (src[ti + r] & 0xff) - (src[ti - r] & 0xff);
-					srcOut[ti] = (int)
-							((src[ti] & 0xff000000) |
-									(((int) (val_r / wsum) & 0xff) << 16) |
-									(((int) (val_g / wsum) & 0xff) << 8) |
-									((int) (val_b / wsum) & 0xff));
-					ti++;
-				}
-				for (int j = w - r; j < w; j++) {
-					val_r -= ((src[ti - r] >>> 16) & 0xff) - ((lv >>> 16) & 0xff);
-					val_g -= ((src[ti - r] >>> 8) & 0xff) - ((lv >>> 8) & 0xff);
-					val_b -= (src[ti - r] & 0xff) - (fv & 0xff);
-					srcOut[ti] = (int)
-							((src[ti] & 0xff000000) |
-									(((int) (val_r / wsum) & 0xff) << 16) |
-									(((int) (val_g / wsum) & 0xff) << 8) |
-									((int) (val_b / wsum) & 0xff));
-					ti++;
+	/**
+	 * Line modes of {@link #boxCascadeLine}: sRGB bytes blurred as they are,
+	 * or through linear light, decoded by the first pass into 16 bit values
+	 * and encoded back by the last one (or both by a single pass)
+	 */
+	private static final int SRGB = 0;
+	private static final int DECODE = 1;
+	private static final int ENCODE = 2;
+	private static final int DECODE_ENCODE = 3;
+
+	/**
+	 * Three box blurs of the given radii, one after the other, over the
+	 * {@code n} pixels starting at {@code start}, {@code stride} apart, in place.
+	 * <p/>
+	 * The boxes run as a pipeline in a single sweep: every pixel read goes
+	 * through the three running sums, and the result for pixel i comes out
+	 * r1 + r2 + r3 pixels later, so only three small rings of sums are kept.
+	 * Sums are never divided between the boxes, the only rounding is the
+	 * final one. Outside the line the edge pixels repeat; alpha is kept.
+	 * @param linear r, g, b of every pixel in linear light, read by {@link #ENCODE}
+	 *               and written by {@link #DECODE}; null for the other modes
+	 * @param rings three buffers of at least 3 * (2 * radius + 1) sums
+	 */
+	private static void boxCascadeLine(int[] pixels, char[] linear, int start, int n, int stride, int[] radii,
+	                                   long[][] rings, int mode) {
+		int d1 = 2 * radii[0] + 1, d2 = 2 * radii[1] + 1, d3 = 2 * radii[2] + 1;
+		int lag = radii[0] + radii[1] + radii[2];
+		long[] ring1 = rings[0], ring2 = rings[1], ring3 = rings[2];
+		double scale = 1.0 / ((double) d1 * d2 * d3);
+
+		// start as if the first pixel extended to the left forever
+		long sum1_r = channel(pixels, linear, start, 16, mode);
+		long sum1_g = channel(pixels, linear, start, 8, mode);
+		long sum1_b = channel(pixels, linear, start, 0, mode);
+		fill(ring1, d1, sum1_r, sum1_g, sum1_b);
+		sum1_r *= d1;
+		sum1_g *= d1;
+		sum1_b *= d1;
+		fill(ring2, d2, sum1_r, sum1_g, sum1_b);
+		long sum2_r = sum1_r * d2, sum2_g = sum1_g * d2, sum2_b = sum1_b * d2;
+		fill(ring3, d3, sum2_r, sum2_g, sum2_b);
+		long sum3_r = sum2_r * d3, sum3_g = sum2_g * d3, sum3_b = sum2_b * d3;
+
+		int i1 = 0, i2 = 0, i3 = 0;
+		int last = start + (n - 1) * stride;
+		for (int t = 1, si = start + stride; t < n + lag; t++, si += stride) {
+			int pi = t < n ? si : last;
+			long r = channel(pixels, linear, pi, 16, mode);
+			long g = channel(pixels, linear, pi, 8, mode);
+			long b = channel(pixels, linear, pi, 0, mode);
+
+			sum1_r += r - ring1[i1];
+			sum1_g += g - ring1[i1 + 1];
+			sum1_b += b - ring1[i1 + 2];
+			ring1[i1] = r;
+			ring1[i1 + 1] = g;
+			ring1[i1 + 2] = b;
+			i1 += 3;
+			if (i1 == 3 * d1) i1 = 0;
+
+			sum2_r += sum1_r - ring2[i2];
+			sum2_g += sum1_g - ring2[i2 + 1];
+			sum2_b += sum1_b - ring2[i2 + 2];
+			ring2[i2] = sum1_r;
+			ring2[i2 + 1] = sum1_g;
+			ring2[i2 + 2] = sum1_b;
+			i2 += 3;
+			if (i2 == 3 * d2) i2 = 0;
+
+			sum3_r += sum2_r - ring3[i3];
+			sum3_g += sum2_g - ring3[i3 + 1];
+			sum3_b += sum2_b - ring3[i3 + 2];
+			ring3[i3] = sum2_r;
+			ring3[i3 + 1] = sum2_g;
+			ring3[i3 + 2] = sum2_b;
+			i3 += 3;
+			if (i3 == 3 * d3) i3 = 0;
+
+			if (t >= lag) {
+				// pixels from t - lag on have not been written yet
+				int di = si - lag * stride;
+				int outR = (int) (sum3_r * scale + 0.5);
+				int outG = (int) (sum3_g * scale + 0.5);
+				int outB = (int) (sum3_b * scale + 0.5);
+				if (mode == DECODE) {
+					linear[3 * di] = (char) outR;
+					linear[3 * di + 1] = (char) outG;
+					linear[3 * di + 2] = (char) outB;
+				} else if (mode == SRGB) {
+					pixels[di] = (pixels[di] & 0xff000000) | (outR << 16) | (outG << 8) | outB;
+				} else {
+					pixels[di] = (pixels[di] & 0xff000000) | ((LinearLight.ENCODE[outR] & 0xff) << 16) |
+							((LinearLight.ENCODE[outG] & 0xff) << 8) | (LinearLight.ENCODE[outB] & 0xff);
 				}
-			} catch (Exception e) {
-				e.printStackTrace();
 			}
 		}
+	}
 
+	/**
+	 * @return the channel at {@code shift} of pixel {@code i} as the line reads it
+	 */
+	private static long channel(int[] pixels, char[] linear, int i, int shift, int mode) {
+		if (mode == ENCODE)
+			return linear[3 * i + (16 - shift) / 8];
+		int c = (pixels[i] >>> shift) & 0xff;
+		return mode == SRGB ? c : LinearLight.DECODE[c];
 	}
-//
-	private static void boxBlurT(int[] src, int[] srcOut, int w, int h, int r, int index, int total) {
-		int wsum = (r + r + 1);
-		for (int i = index*w/total; i < (index+1)*w/total; i++) {
-			int ti = i, li = ti, ri = ti + r * w;
-
-			int fv = src[ti], lv = src[ti + w * (h - 1)], val = (r + 1) * fv;
-			int val_r = (r + 1) * ((fv >>> 16) & 0xff);
-			int val_g = (r + 1) * ((fv >>> 8) & 0xff);
-			int val_b = (r + 1) * (fv & 0xff);
-			for (int j = 0; j < r; j++) {
-				val_r += ((src[ti + j * w] >>> 16) & 0xff);
-				val_g += ((src[ti + j * w] >>> 8) & 0xff);
-				val_b += (src[ti + j * w] & 0xff);
-			}
-			for (int j = 0; j <= r; j++) {
-				val_r += ((src[ti + r * w] >>> 16) & 0xff) - ((fv >>> 16) & 0xff);
-				val_g += ((src[ti + r * w] >>> 8) & 0xff) - ((fv >>> 8) & 0xff);
-				val_b += (src[ti + r * w] & 0xff) - (fv & 0xff);
 
-				srcOut[ti] = (int)
-						((src[ti] & 0xff000000) |
-								(((int) (val_r / wsum) & 0xff) << 16) |
-								(((int) (val_g / wsum) & 0xff) << 8) |
-								((int) (val_b / wsum) & 0xff));
-				ti += w;
-			}
-			for (int j = r + 1; j < h - r; j++) {
-				val_r += ((src[ti + r * w] >>> 16) & 0xff) - ((src[ti - r * w] >>> 16) & 0xff);
-				val_g += ((src[ti + r * w] >>> 8) & 0xff) - ((src[ti - r * w] >>> 8) & 0xff);
-				val_b += (src[ti + r * w] & 0xff) - (src[ti - r * w] & 0xff);
-				srcOut[ti] = (int)
-						((src[ti] & 0xff000000) |
-								(((int) (val_r / wsum) & 0xff) << 16) |
-								(((int) (val_g / wsum) & 0xff) << 8) |
-								((int) (val_b / wsum) & 0xff));
-				ti += w;
-			}
-			for (int j = h - r; j < h; j++) {
-				val_r -= ((src[ti - r * w] >>> 16) & 0xff) - ((lv >>> 16) & 0xff);
-				val_g -= ((src[ti - r * w] >>> 8) & 0xff) - ((lv >>> 8) & 0xff);
-				val_b -= (src[ti - r * w] & 0xff) - (fv & 0xff);
-				srcOut[ti] = (int)
-						((src[ti] & 0xff000000) |
-								(((int) (val_r / wsum) & 0xff) << 16) |
-								(((int) (val_g / wsum) & 0xff) << 8) |
-								((int) (val_b / wsum) & 0xff));
-				ti += w;
-			}
+	private static void fill(long[] ring, int d, long r, long g, long b) {
+		for (int i = 0; i < 3 * d; i += 3) {
+			ring[i] = r;
+			ring[i + 1] = g;
+			ring[i + 2] = b;
 		}
 	}
 
@@ -240,7 +233,6 @@ class JavaBlurProcess implements BlurProcess {
 
 						wsum += wght;
 					}
-				Log.v("tinglog", "" + (i * w + j) + " time" + (System.currentTimeMillis() - start));
 				tcl[i * w + j] = (int)
 						((scl[i * w + j] & 0xff000000) |
 								(((int) (val_r / wsum / 100) & 0xff) << 16) |
@@ -495,96 +487,126 @@ class JavaBlurProcess implements BlurProcess {
 
 	private static class BlurTask implements Callable<Void> {
 		private final int[] _src;
+		private final char[] _linear;
+		private final int _mode;
 		private final int _w;
 		private final int _h;
-		private final int _radius;
+		private final int[] _radii;
 		private final int _totalCores;
 		private final int _coreIndex;
 		private final int _round;
+		private final BlurMetrics _metrics;
 
-		public BlurTask(int[] src, int w, int h, int radius, int totalCores, int coreIndex, int round) {
+		public BlurTask(int[] src, char[] linear, int mode, int w, int h, int[] radii, int totalCores,
+		                int coreIndex, int round, BlurMetrics metrics) {
 			_src = src;
+			_linear = linear;
+			_mode = mode;
 			_w = w;
 			_h = h;
-			_radius = radius;
+			_radii = radii;
 			_totalCores = totalCores;
 			_coreIndex = coreIndex;
 			_round = round;
+			_metrics = metrics;
 		}
 
-		@TargetApi(Build.VERSION_CODES.GINGERBREAD)
 		@Override
 		public Void call() throws Exception {
-			try {
-				int[] _copySrc = Arrays.copyOf(_src,_src.length);
-				int[] _copyOut=new int[_copySrc.length];
-				start = System.currentTimeMillis();
-				gaussBlur(_copySrc, _copyOut, _w, _h, _radius, _round, _coreIndex, _totalCores);
-				if(_round==1){
-					for (int i = _coreIndex*_h/_totalCores; i < (_coreIndex+1)*_h/_totalCores; i++) {
-						int ti = i*_w;
-						for (int j = 0; j < _h; j++) {
-							_src[ti]=_copyOut[ti];
-							ti+=1;
-						}
-					}
-				}else{
-					for (int i = _coreIndex*_w/_totalCores; i < (_coreIndex+1)*_w/_totalCores; i++) {
-						int ti = i;
-						for (int j = 0; j < _h; j++) {
-							_src[ti]=_copyOut[ti];
-							ti+=_w;
-						}
-					}
-				}
-			} catch (Exception e) {
-				e.printStackTrace();
+			long mark = _metrics.mark();
+			long[][] rings = new long[3][];
+			for (int i = 0; i < 3; i++)
+				rings[i] = new long[3 * (2 * _radii[i] + 1)];
+			if (_round == 1) {
+				for (int y = _coreIndex * _h / _totalCores; y < (_coreIndex + 1) * _h / _totalCores; y++)
+					boxCascadeLine(_src, _linear, y * _w, _w, 1, _radii, rings, _mode);
+			} else {
+				for (int x = _coreIndex * _w / _totalCores; x < (_coreIndex + 1) * _w / _totalCores; x++)
+					boxCascadeLine(_src, _linear, x, _h, _w, _radii, rings, _mode);
 			}
-			//blurIteration(_src, _w, _h, _radius, _totalCores, _coreIndex, _round);
+			_metrics.addBusy(mark);
 			return null;
 		}
 
 	}
 
-	private static long start;
 	private int type=1;
+	private final boolean _linearLight;
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
 	JavaBlurProcess(int type){
+		this(type, BlurExecutor.getDefault());
+	}
+	JavaBlurProcess(int type, BlurExecutor executor){
+		this(type, false, executor);
+	}
+
+	/**
+	 * @param linearLight blur in linear light rather than on the sRGB values,
+	 *                    see {@link LinearLight}
+	 */
+	JavaBlurProcess(int type, boolean linearLight, BlurExecutor executor){
 		this.type=type;
+		_linearLight=linearLight;
+		_executor=executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
 	}
 
 	@Override
 	public Bitmap blur(Bitmap original, float radius) {
 		int w = original.getWidth();
 		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "JavaBlurProcess", w, h, radius, cores);
+		long mark = metrics.mark();
 		int[] currentPixels = new int[w * h];
 		original.getPixels(currentPixels, 0, w, 0, 0, w, h);
-		int cores = StackBlurManager.EXECUTOR_THREADS;
+		metrics.addAllocated(4L * w * h);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
 		ArrayList<BlurTask> horizontal = new ArrayList<BlurTask>(cores);
 		ArrayList<BlurTask> vertical = new ArrayList<BlurTask>(cores);
+		int[] radii = boxRadiiForGauss((int) radius);
+		// in linear light the row pass decodes and the column pass encodes, a single pass does both
+		char[] linear = null;
+		if (_linearLight && type == 1) {
+			linear = new char[3 * w * h];
+			metrics.addAllocated(6L * w * h);
+		}
+		int single = _linearLight ? DECODE_ENCODE : SRGB;
 		for (int i = 0; i < cores; i++) {
 			if(type==1){
-				horizontal.add(new BlurTask(currentPixels, w, h, (int) radius, cores, i, 1));
-				vertical.add(new BlurTask(currentPixels, w, h, (int) radius, cores, i, 2));
+				horizontal.add(new BlurTask(currentPixels, linear, _linearLight ? DECODE : SRGB, w, h, radii, cores, i, 1, metrics));
+				vertical.add(new BlurTask(currentPixels, linear, _linearLight ? ENCODE : SRGB, w, h, radii, cores, i, 2, metrics));
 			}else if(type==2){
-				horizontal.add(new BlurTask(currentPixels, w, h, (int) radius, cores, i, 1));
+				horizontal.add(new BlurTask(currentPixels, null, single, w, h, radii, cores, i, 1, metrics));
 			}else if(type==3){
-				vertical.add(new BlurTask(currentPixels, w, h, (int) radius, cores, i, 2));
+				vertical.add(new BlurTask(currentPixels, null, single, w, h, radii, cores, i, 2, metrics));
 			}
 		}
 
 		try {
-			StackBlurManager.EXECUTOR.invokeAll(horizontal);
+			_executor.invokeAll(horizontal);
 		} catch (InterruptedException e) {
 			return null;
 		}
+		mark = metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
 
 		try {
-			StackBlurManager.EXECUTOR.invokeAll(vertical);
+			_executor.invokeAll(vertical);
 		} catch (InterruptedException e) {
 			return null;
 		}
+		mark = metrics.lap(BlurMetrics.Stage.VERTICAL, mark);
 
-		return Bitmap.createBitmap(currentPixels, w, h, Bitmap.Config.ARGB_8888);
+		Bitmap blurred = Bitmap.createBitmap(currentPixels, w, h, Bitmap.Config.ARGB_8888);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
 	}
 
 
@@ -74,19 +74,37 @@ class JavaRadialBlurProcess implements BlurProcess {
 	private int type=1;
 	private int center_x=0;
 	private int center_y=0;
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
 	JavaRadialBlurProcess(int type){
+		this(type, BlurExecutor.getDefault());
+	}
+	JavaRadialBlurProcess(int type, BlurExecutor executor){
 		this.type=type;
+		_executor=executor;
 	}
 	JavaRadialBlurProcess(int type,int center_x,int center_y){
+		this(type, center_x, center_y, BlurExecutor.getDefault());
+	}
+	JavaRadialBlurProcess(int type,int center_x,int center_y, BlurExecutor executor){
 		this.type=type;
 		this.center_y=center_y;
 		this.center_x=center_x;
+		_executor=executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
 	}
 
 	@Override
 	public Bitmap blur(Bitmap original, float radius) {
 		int w = original.getWidth();
 		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "JavaRadialBlurProcess", w, h, radius, cores);
+		long mark = metrics.mark();
 		int[] currentPixels = new int[w * h];
 
 		if(center_x==0)
@@ -102,35 +120,44 @@ class JavaRadialBlurProcess implements BlurProcess {
 		int l=2*(w+h-2);
 		int[] outPixels=new int[r*l];
 		original.getPixels(currentPixels, 0, w, 0, 0, w, h);
+		metrics.addAllocated(4L * w * h + 4L * r * l);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
 
 		if(type==TYPE_CircularBlur||type==TYPE_RadialBlur)
 			ImageMathUtil.trans2Polor(currentPixels, w, h, outPixels,r,l,center_x,center_y);
-		int cores = StackBlurManager.EXECUTOR_THREADS;
+		mark = metrics.lap(BlurMetrics.Stage.POLAR_TRANSFORM, mark);
 		ArrayList< BlurTask> horizontal = new ArrayList<BlurTask>(cores);
 		ArrayList<BlurTask> vertical = new ArrayList<BlurTask>(cores);
 
 		for (int i = 0; i < cores; i++) {
 			if(type==TYPE_CircularBlur)
-				horizontal.add(new BlurTask(outPixels, l, r, (int) radius, cores, i, 1));
+				horizontal.add(new BlurTask(outPixels, l, r, (int) radius, cores, i, 1, metrics));
 			else if(type==TYPE_RadialBlur)
-				vertical.add(new BlurTask(outPixels, l, r, (int) radius, cores, i, 2));
+				vertical.add(new BlurTask(outPixels, l, r, (int) radius, cores, i, 2, metrics));
 		}
 		try {
-			StackBlurManager.EXECUTOR.invokeAll(horizontal);
+			_executor.invokeAll(horizontal);
 		} catch (InterruptedException e) {
 			return null;
 		}
+		mark = metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
 
 		try {
-			StackBlurManager.EXECUTOR.invokeAll(vertical);
+			_executor.invokeAll(vertical);
 		} catch (InterruptedException e) {
 			return null;
 		}
+		mark = metrics.lap(BlurMetrics.Stage.VERTICAL, mark);
 
 		if(type==TYPE_CircularBlur||type==TYPE_RadialBlur)
 			ImageMathUtil.trans2Cartesian(currentPixels, w, h, outPixels,r,l,center_x,center_y);
+		mark = metrics.lap(BlurMetrics.Stage.INVERSE_TRANSFORM, mark);
 
-		return Bitmap.createBitmap(currentPixels, w, h, Bitmap.Config.ARGB_8888);
+		Bitmap blurred = Bitmap.createBitmap(currentPixels, w, h, Bitmap.Config.ARGB_8888);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
 	}
 
 	private static void blurIteration(int[] src, int w, int h, int radius, int cores, int core, int step) {
@@ -378,8 +405,10 @@ class JavaRadialBlurProcess implements BlurProcess {
 		private final int _totalCores;
 		private final int _coreIndex;
 		private final int _round;
+		private final BlurMetrics _metrics;
 
-		public BlurTask(int[] src, int w, int h, int radius, int totalCores, int coreIndex, int round) {
+		public BlurTask(int[] src, int w, int h, int radius, int totalCores, int coreIndex, int round,
+		                BlurMetrics metrics) {
 			_src = src;
 			_w = w;
 			_h = h;
@@ -387,11 +416,14 @@ class JavaRadialBlurProcess implements BlurProcess {
 			_totalCores = totalCores;
 			_coreIndex = coreIndex;
 			_round = round;
+			_metrics = metrics;
 		}
 
 		@Override
 		public Void call() throws Exception {
+			long mark = _metrics.mark();
 			blurIteration(_src, _w, _h, _radius, _totalCores, _coreIndex, _round);
+			_metrics.addBusy(mark);
 			return null;
 		}
 
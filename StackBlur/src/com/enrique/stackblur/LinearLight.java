@@ -0,0 +1,43 @@
+package com.enrique.stackblur;
+
+/**
+ * Lookup tables between sRGB bytes and 16 bit linear light.
+ * <p/>
+ * Averaging sRGB values directly darkens the border between a bright and a
+ * dark area, since sRGB 128 is far less than half the light of 255. Blurs
+ * that care decode every channel with {@link #DECODE} as they first read it,
+ * blur the 16 bit values, and encode them back with {@link #ENCODE} as they
+ * last write them. The encoding table has an entry for every 16 bit value, so
+ * it is a single lookup and the nearest sRGB byte, even near black where the
+ * curve is steepest.
+ */
+final class LinearLight {
+
+	/**
+	 * Linear light of each sRGB byte, from 0 to 65535
+	 */
+	static final char[] DECODE = new char[256];
+
+	/**
+	 * sRGB byte of each linear value
+	 */
+	static final byte[] ENCODE = new byte[65536];
+
+	static {
+		for (int c = 0; c < 256; c++)
+			DECODE[c] = (char) Math.round(65535 * toLinear(c / 255.0));
+		for (int v = 0; v < 65536; v++)
+			ENCODE[v] = (byte) Math.round(255 * toSrgb(v / 65535.0));
+	}
+
+	private LinearLight() {
+	}
+
+	private static double toLinear(double srgb) {
+		return srgb <= 0.04045 ? srgb / 12.92 : Math.pow((srgb + 0.055) / 1.055, 2.4);
+	}
+
+	private static double toSrgb(double linear) {
+		return linear <= 0.0031308 ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+	}
+}
@@ -0,0 +1,146 @@
+package com.enrique.stackblur;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A raw ARGB file (width * height big-endian ints, no header, the same layout
+ * as {@link RawStripSource}) accessed through memory mapping.
+ * <p/>
+ * Rows are read and written through an {@link IntBuffer} view of a mapped
+ * window of the file, so the image never goes through the Java heap as a
+ * whole and paging is left to the OS. Windows are remapped as the strips move
+ * down, which also lifts the 2 GB limit of a single mapping.
+ * <p/>
+ * The blur itself does not run on the buffer: the streaming blur copies each
+ * strip of rows into a heap array, blurs it there with the int[] kernel and
+ * copies it back. Heap use stays bounded by the strip (width * (radius +
+ * strip height) pixels), and the kernel keeps its plain array accesses,
+ * which are much faster than get/put on a direct buffer.
+ */
+public class MappedPixelFile implements StripSource, StripSink {
+
+	/**
+	 * Largest window mapped at once.
+	 */
+	static final long MAX_WINDOW_BYTES = 64L * 1024 * 1024;
+
+	private final RandomAccessFile _file;
+	private final FileChannel _channel;
+	private final FileChannel.MapMode _mode;
+	private final int _width;
+	private final int _height;
+	private final int _windowRows;
+
+	private MappedByteBuffer _buffer;
+	private IntBuffer _window;
+	private int _windowTop;
+	private int _windowCount;
+
+	private MappedPixelFile(RandomAccessFile file, FileChannel.MapMode mode, int width, int height) {
+		_file = file;
+		_channel = file.getChannel();
+		_mode = mode;
+		_width = width;
+		_height = height;
+		_windowRows = (int) Math.max(1, Math.min(height, MAX_WINDOW_BYTES / (width * 4L)));
+	}
+
+	/**
+	 * Map an existing raw file for reading.
+	 */
+	public static MappedPixelFile open(File file, int width, int height) throws IOException {
+		checkSize(width, height);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		if (raf.length() < (long) width * height * 4) {
+			raf.close();
+			throw new IOException(file + " is smaller than " + width + "x" + height + " ARGB pixels");
+		}
+		return new MappedPixelFile(raf, FileChannel.MapMode.READ_ONLY, width, height);
+	}
+
+	/**
+	 * Create (or truncate) a raw file of the given size and map it for writing.
+	 */
+	public static MappedPixelFile create(File file, int width, int height) throws IOException {
+		checkSize(width, height);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength((long) width * height * 4);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+		return new MappedPixelFile(raf, FileChannel.MapMode.READ_WRITE, width, height);
+	}
+
+	/**
+	 * Checked before the file is opened, so that nothing is left to close
+	 */
+	private static void checkSize(int width, int height) {
+		if (width <= 0 || height <= 0)
+			throw new IllegalArgumentException("empty image: " + width + "x" + height);
+	}
+
+	@Override
+	public int getWidth() {
+		return _width;
+	}
+
+	@Override
+	public int getHeight() {
+		return _height;
+	}
+
+	@Override
+	public void readRows(int top, int count, int[] pixels) throws IOException {
+		transfer(top, count, pixels, false);
+	}
+
+	@Override
+	public void writeRows(int top, int count, int[] pixels) throws IOException {
+		transfer(top, count, pixels, true);
+	}
+
+	private void transfer(int top, int count, int[] pixels, boolean write) throws IOException {
+		int offset = 0;
+		while (count > 0) {
+			if (top < _windowTop || top >= _windowTop + _windowCount)
+				map(top);
+			int rows = Math.min(count, _windowTop + _windowCount - top);
+			_window.position((top - _windowTop) * _width);
+			if (write)
+				_window.put(pixels, offset, rows * _width);
+			else
+				_window.get(pixels, offset, rows * _width);
+			offset += rows * _width;
+			top += rows;
+			count -= rows;
+		}
+	}
+
+	private void map(int top) throws IOException {
+		int count = Math.min(_windowRows, _height - top);
+		_buffer = _channel.map(_mode, (long) top * _width * 4, (long) count * _width * 4);
+		_window = _buffer.asIntBuffer();
+		_windowTop = top;
+		_windowCount = count;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			// earlier windows were written back by the OS as they were unmapped
+			if (_mode == FileChannel.MapMode.READ_WRITE && _buffer != null)
+				_buffer.force();
+		} finally {
+			_buffer = null;
+			_window = null;
+			_file.close();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Motion blur along any direction, without rotating the image.
+ * <p/>
+ * The image is cut into parallel digital lines of the given angle: a line
+ * steps one pixel at a time along the major axis and is sheared along the
+ * other one by the rounded slope. Every pixel belongs to exactly one line,
+ * so lines are blurred in place and independently, groups of them on the
+ * {@link BlurExecutor}. Along a line a sliding box sum is updated once per
+ * pixel, so the cost does not depend on the length of the blur.
+ * <p/>
+ * Beyond the ends of a line its end pixels repeat; all four channels are
+ * averaged.
+ */
+class MotionBlurProcess implements BlurProcess {
+
+	private final float _angleDegrees;
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
+
+	/**
+	 * @param angleDegrees direction of the motion, 0 is horizontal, 90 vertical
+	 */
+	MotionBlurProcess(float angleDegrees) {
+		this(angleDegrees, BlurExecutor.getDefault());
+	}
+
+	MotionBlurProcess(float angleDegrees, BlurExecutor executor) {
+		_angleDegrees = angleDegrees;
+		_executor = executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
+	/**
+	 * @param radius half the length of the motion, in pixels
+	 */
+	@Override
+	public Bitmap blur(Bitmap original, float radius) {
+		int w = original.getWidth();
+		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "MotionBlurProcess", w, h, radius, cores);
+		long mark = metrics.mark();
+		int[] currentPixels = PixelArrayPool.acquire(w * h, metrics);
+		original.getPixels(currentPixels, 0, w, 0, 0, w, h);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
+
+		double angle = Math.toRadians(_angleDegrees);
+		double cos = Math.cos(angle), sin = Math.sin(angle);
+		boolean steep = Math.abs(sin) > Math.abs(cos);
+		int major = steep ? h : w;
+		int minor = steep ? w : h;
+		// a step along the major axis is 1 / max(|cos|, |sin|) pixels long
+		int steps = Math.round(radius * (float) Math.max(Math.abs(cos), Math.abs(sin)));
+
+		if (steps > 0) {
+			double slope = steep ? cos / sin : sin / cos;
+			int[] shear = new int[major];
+			for (int m = 0; m < major; m++)
+				shear[m] = (int) Math.round(m * slope);
+			// line k goes through minor coordinate k + shear[m] at major coordinate m
+			int firstLine = -Math.max(shear[0], shear[major - 1]);
+			int lastLine = minor - 1 - Math.min(shear[0], shear[major - 1]);
+
+			ArrayList<LineTask> tasks = new ArrayList<LineTask>(cores);
+			int lines = lastLine - firstLine + 1;
+			for (int i = 0; i < cores; i++) {
+				tasks.add(new LineTask(currentPixels, w, steep, shear, minor, steps,
+						firstLine + i * lines / cores, firstLine + (i + 1) * lines / cores, metrics));
+			}
+			try {
+				_executor.invokeAll(tasks);
+			} catch (InterruptedException e) {
+				// stripes may still be running: the array can't go back to the pool
+				return null;
+			}
+			mark = metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
+		}
+
+		Bitmap blurred = Bitmap.createBitmap(currentPixels, 0, w, w, h, Bitmap.Config.ARGB_8888);
+		PixelArrayPool.release(currentPixels);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
+	}
+
+	/**
+	 * Box blur {@code n} pixels gathered from a line, writing them back at
+	 * their indices.
+	 */
+	static void boxLine(int[] pixels, int[] line, int[] index, int n, int radius) {
+		int d = 2 * radius + 1;
+		double scale = 1.0 / d;
+		int first = line[0], last = line[n - 1];
+
+		// the window of the first pixel: radius + 1 copies of it, the next
+		// pixels, and copies of the last one where the line is shorter
+		int sum_a = (radius + 1) * (first >>> 24), sum_r = (radius + 1) * ((first >>> 16) & 0xff);
+		int sum_g = (radius + 1) * ((first >>> 8) & 0xff), sum_b = (radius + 1) * (first & 0xff);
+		int inside = Math.min(radius, n - 1);
+		for (int i = 1; i <= inside; i++) {
+			int p = line[i];
+			sum_a += p >>> 24;
+			sum_r += (p >>> 16) & 0xff;
+			sum_g += (p >>> 8) & 0xff;
+			sum_b += p & 0xff;
+		}
+		int beyond = radius - inside;
+		sum_a += beyond * (last >>> 24);
+		sum_r += beyond * ((last >>> 16) & 0xff);
+		sum_g += beyond * ((last >>> 8) & 0xff);
+		sum_b += beyond * (last & 0xff);
+
+		for (int i = 0; i < n; i++) {
+			pixels[index[i]] = ((int) (sum_a * scale + 0.5) << 24) |
+					((int) (sum_r * scale + 0.5) << 16) |
+					((int) (sum_g * scale + 0.5) << 8) |
+					(int) (sum_b * scale + 0.5);
+
+			int in = i + radius + 1 < n ? line[i + radius + 1] : last;
+			int out = i - radius >= 0 ? line[i - radius] : first;
+			sum_a += (in >>> 24) - (out >>> 24);
+			sum_r += ((in >>> 16) & 0xff) - ((out >>> 16) & 0xff);
+			sum_g += ((in >>> 8) & 0xff) - ((out >>> 8) & 0xff);
+			sum_b += (in & 0xff) - (out & 0xff);
+		}
+	}
+
+	private static class LineTask implements Callable<Void> {
+		private final int[] _pixels;
+		private final int _w;
+		private final boolean _steep;
+		private final int[] _shear;
+		private final int _minor;
+		private final int _steps;
+		private final int _firstLine;
+		private final int _endLine;
+		private final BlurMetrics _metrics;
+
+		LineTask(int[] pixels, int w, boolean steep, int[] shear, int minor, int steps,
+		         int firstLine, int endLine, BlurMetrics metrics) {
+			_pixels = pixels;
+			_w = w;
+			_steep = steep;
+			_shear = shear;
+			_minor = minor;
+			_steps = steps;
+			_firstLine = firstLine;
+			_endLine = endLine;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			int major = _shear.length;
+			int[] line = new int[major];
+			int[] index = new int[major];
+			for (int k = _firstLine; k < _endLine; k++) {
+				// the shear is monotonic, so the pixels of a line inside the image are contiguous
+				int n = 0;
+				for (int m = 0; m < major; m++) {
+					int c = k + _shear[m];
+					if (c < 0 || c >= _minor) {
+						if (n > 0)
+							break;
+						continue;
+					}
+					int i = _steep ? m * _w + c : c * _w + m;
+					line[n] = _pixels[i];
+					index[n] = i;
+					n++;
+				}
+				if (n > 1)
+					boxLine(_pixels, line, index, n, _steps);
+			}
+			_metrics.addBusy(mark);
+			return null;
+		}
+	}
+}
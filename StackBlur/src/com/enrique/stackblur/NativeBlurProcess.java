@@ -2,92 +2,103 @@ package com.enrique.stackblur;
 
 import android.graphics.Bitmap;
 
-import java.util.ArrayList;
-import java.util.concurrent.Callable;
-
 /**
  * @see JavaBlurProcess
  * Blur using the NDK and native code.
+ * <p/>
+ * The whole blur is a single native call: the bitmap is locked once and both
+ * steps run on a native pthread pool, with a barrier between the horizontal
+ * and the vertical step.
+ * <p/>
+ * The library is loaded through {@link NativeLibrary}, on its own thread; until
+ * it is loaded, or when it is missing, the same blur is done by the Java
+ * kernels instead.
  */
 class NativeBlurProcess implements BlurProcess {
-	private static native void functionToBlur(Bitmap bitmapOut, int radius, int threadCount, int threadIndex, int round);
+	/**
+	 * @param type {@link #TYPE_StackBlur} (uses radius1 only) or {@link #TYPE_BoxStackBlur}
+	 * @param hasAlpha false selects the RGB-only kernels, which leave alpha untouched
+	 */
+	private static native void nativeBlur(Bitmap bitmapOut, int type, boolean hasAlpha,
+	                                      int radius1, int radius2, int radius3, int threadCount);
+	/**
+	 * @return the stack blur kernel the native library picked for this CPU:
+	 * "avx2", "sse4.1", "neon" or "scalar"
+	 */
+	private static native String nativeKernelName();
 	private int _type=TYPE_StackBlur;
-	static {
-		System.loadLibrary("blur");
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
+	NativeBlurProcess(){
+		this(TYPE_StackBlur);
 	}
-	NativeBlurProcess(){}
 	NativeBlurProcess(int type){
+		this(type, BlurExecutor.getDefault());
+	}
+	/**
+	 * @param executor only its parallelism is used, for the number of native threads
+	 */
+	NativeBlurProcess(int type, BlurExecutor executor){
 		_type=type;
+		_executor=executor;
+	}
+	/**
+	 * @return the native stack blur kernel, or null without native library
+	 */
+	static String kernelName() {
+		return NativeLibrary.isAvailable() ? nativeKernelName() : null;
 	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
 	@Override
 	public Bitmap blur(Bitmap original, float radius) {
-		Bitmap bitmapOut = original.copy(Bitmap.Config.ARGB_8888, true);
-		int cores = StackBlurManager.EXECUTOR_THREADS;
-		ArrayList<NativeTask> horizontal = new ArrayList<NativeTask>(cores);
-		ArrayList<NativeTask> vertical = new ArrayList<NativeTask>(cores);
-		for (int i = 0; i < cores; i++) {
-			horizontal.add(new NativeTask(bitmapOut, (int) radius, cores, i, 1,_type));
-			vertical.add(new NativeTask(bitmapOut, (int) radius, cores, i, 2,_type));
-		}
-		try {
-			StackBlurManager.EXECUTOR.invokeAll(horizontal);
-		} catch (InterruptedException e) {
-			return bitmapOut;
+		// never wait for the library here, this may be the UI thread
+		NativeLibrary.loadAsync();
+		if (!NativeLibrary.isLoaded()) {
+			BlurProcess fallback = _type == TYPE_StackBlur ? new StackJavaBlurProcess(_executor)
+					: new JavaBlurProcess(1, _executor);
+			fallback.setMetricsListener(_metricsListener);
+			return fallback.blur(original, radius);
 		}
-
-		try {
-			StackBlurManager.EXECUTOR.invokeAll(vertical);
-		} catch (InterruptedException e) {
-			return bitmapOut;
+		int cores = _executor.getParallelism();
+		// the native blur works on the bitmap in place: both passes are HORIZONTAL
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "NativeBlurProcess", original.getWidth(),
+				original.getHeight(), radius, cores);
+		long mark = metrics.mark();
+		Bitmap bitmapOut = original.copy(Bitmap.Config.ARGB_8888, true);
+		metrics.addAllocated(4L * original.getWidth() * original.getHeight());
+		mark = metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		// opaque images don't pay for blurring and clamping alpha
+		boolean hasAlpha = original.hasAlpha();
+		if (_type == TYPE_StackBlur) {
+			nativeBlur(bitmapOut, _type, hasAlpha, (int) radius, 0, 0, cores);
+		} else {
+			int[] bxs = boxesForGauss((int) radius, 3);
+			nativeBlur(bitmapOut, _type, hasAlpha, (bxs[0] - 1) / 2, (bxs[1] - 1) / 2, (bxs[2] - 1) / 2, cores);
 		}
+		metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
+		metrics.end();
 		return bitmapOut;
 	}
 
-	private static class NativeTask implements Callable<Void> {
-		private final Bitmap _bitmapOut;
-		private final int _radius;
-		private final int _totalCores;
-		private final int _coreIndex;
-		private final int _round;
-		private final int _type;
-
-		private static int[] boxesForGauss(int sigma, int n)  // standard deviation, number of boxes
-		{
-			int wIdeal = (int) (Math.sqrt((12 * sigma * sigma / n) + 1));  // Ideal averaging filter width
-			int wl = (int) (Math.floor(wIdeal));
-			if (wl % 2 == 0) wl--;
-			int wu = wl + 2;
+	private static int[] boxesForGauss(int sigma, int n)  // standard deviation, number of boxes
+	{
+		int wIdeal = (int) (Math.sqrt((12 * sigma * sigma / n) + 1));  // Ideal averaging filter width
+		int wl = (int) (Math.floor(wIdeal));
+		if (wl % 2 == 0) wl--;
+		int wu = wl + 2;
 
-			int mIdeal = (12 * sigma * sigma - n * wl * wl - 4 * n * wl - 3 * n) / (-4 * wl - 4);
-			int m = Math.round(mIdeal);
-			// var sigmaActual = Math.sqrt( (m*wl*wl + (n-m)*wu*wu - n)/12 );
-
-			int[] sizes = new int[n];
-			for (int i = 0; i < n; i++)
-				sizes[i] = (i < m ? wl : wu);
-			return sizes;
-		}
-
-		public NativeTask(Bitmap bitmapOut, int radius, int totalCores, int coreIndex, int round,int type) {
-			_bitmapOut = bitmapOut;
-			_radius = radius;
-			_totalCores = totalCores;
-			_coreIndex = coreIndex;
-			_round = round;
-			_type = type;
-		}
-
-		@Override public Void call() throws Exception {
-			if(_type==1){
-				functionToBlur(_bitmapOut, _radius, _totalCores, _coreIndex, _round);
-			}else{
-				int[] bxs = boxesForGauss(_radius, 3);
-				functionToBlur(_bitmapOut, (bxs[0] - 1) / 2, _totalCores, _coreIndex, _round);
-				functionToBlur(_bitmapOut, (bxs[1] - 1) / 2, _totalCores, _coreIndex, _round);
-				functionToBlur(_bitmapOut, (bxs[2] - 1) / 2, _totalCores, _coreIndex, _round);
-			}
-			return null;
-		}
+		int mIdeal = (12 * sigma * sigma - n * wl * wl - 4 * n * wl - 3 * n) / (-4 * wl - 4);
+		int m = Math.round(mIdeal);
+		// var sigmaActual = Math.sqrt( (m*wl*wl + (n-m)*wu*wu - n)/12 );
 
+		int[] sizes = new int[n];
+		for (int i = 0; i < n; i++)
+			sizes[i] = (i < m ? wl : wu);
+		return sizes;
 	}
 }
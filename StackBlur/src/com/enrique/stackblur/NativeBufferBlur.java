@@ -0,0 +1,54 @@
+package com.enrique.stackblur;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Native blur of RGBA_8888 pixels held in a direct {@link ByteBuffer}.
+ * <p/>
+ * Unlike {@link NativeBlurProcess} this does not depend on Android bitmaps,
+ * so the same native core can be run on a desktop JVM, e.g. to compare it
+ * with the Java kernels on a CI machine.
+ */
+public final class NativeBufferBlur {
+	static final int TYPE_STACK = 1;
+	static final int TYPE_BOX = 2;
+
+	private static native void nativeBlurBuffer(ByteBuffer pixels, int width, int height, int stride,
+	                                            int type, boolean hasAlpha, int radius1, int radius2, int radius3, int threadCount);
+
+	private NativeBufferBlur() {
+	}
+
+	/**
+	 * There is no Java fallback here: wait for the library, loading it if needed
+	 */
+	private static void requireLibrary() {
+		if (!NativeLibrary.isAvailable())
+			throw new UnsatisfiedLinkError("libblur.so could not be loaded");
+	}
+
+	/**
+	 * Stack blur the buffer in place.
+	 * @param pixels a direct buffer of RGBA_8888 pixels
+	 * @param stride bytes per row, at least {@code width * 4}
+	 * @param hasAlpha false if every pixel is opaque: alpha is then neither blurred nor changed
+	 * @param threadCount number of native threads, the calling one included
+	 * @throws IllegalArgumentException if the buffer is not direct or too small
+	 * @throws UnsatisfiedLinkError if the native library is missing
+	 */
+	public static void stackBlur(ByteBuffer pixels, int width, int height, int stride, boolean hasAlpha,
+	                             int radius, int threadCount) {
+		requireLibrary();
+		nativeBlurBuffer(pixels, width, height, stride, TYPE_STACK, hasAlpha, radius, 0, 0, threadCount);
+	}
+
+	/**
+	 * Gaussian blur approximated by three box blurs of the given radii, in place.
+	 * @see #stackBlur
+	 */
+	public static void boxBlur(ByteBuffer pixels, int width, int height, int stride, boolean hasAlpha,
+	                           int radius1, int radius2, int radius3, int threadCount) {
+		requireLibrary();
+		nativeBlurBuffer(pixels, width, height, stride, TYPE_BOX, hasAlpha, radius1, radius2, radius3, threadCount);
+	}
+}
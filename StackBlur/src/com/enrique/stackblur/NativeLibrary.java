@@ -0,0 +1,90 @@
+package com.enrique.stackblur;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads libblur.so once per process, off the calling thread.
+ * <p/>
+ * A missing or broken library (e.g. an ABI that was not packaged) is logged
+ * and reported as unavailable instead of throwing, so callers can fall back
+ * to the Java kernels.
+ */
+final class NativeLibrary {
+	private static final String TAG = "NativeLibrary";
+	private static final String NAME = "blur";
+
+	private static FutureTask<Boolean> sLoad;
+
+	private NativeLibrary() {
+	}
+
+	/**
+	 * Start loading the library on a background thread, unless already started.
+	 * @return completes with true once the library is loaded, false if it can't be
+	 */
+	static synchronized Future<Boolean> loadAsync() {
+		if (sLoad == null) {
+			sLoad = new FutureTask<Boolean>(new Callable<Boolean>() {
+				@Override
+				public Boolean call() {
+					try {
+						System.loadLibrary(NAME);
+						return true;
+					} catch (LinkageError e) {
+						Log.w(TAG, "lib" + NAME + ".so not available, blurring in Java", e);
+						return false;
+					}
+				}
+			});
+			Thread thread = new Thread(sLoad, "StackBlur-native-loader");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return sLoad;
+	}
+
+	/**
+	 * Availability probe that never blocks nor starts loading.
+	 * @return true only if the library is already loaded
+	 */
+	static boolean isLoaded() {
+		Future<Boolean> load;
+		synchronized (NativeLibrary.class) {
+			load = sLoad;
+		}
+		return load != null && load.isDone() && result(load);
+	}
+
+	/**
+	 * Wait for the library, starting to load it if nobody did.
+	 * @return false if it could not be loaded
+	 */
+	static boolean isAvailable() {
+		return result(loadAsync());
+	}
+
+	private static boolean result(Future<Boolean> load) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return load.get();
+				} catch (InterruptedException e) {
+					// loading takes milliseconds, finish waiting and keep the interrupt
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Log.w(TAG, "could not load lib" + NAME + ".so", e.getCause());
+					return false;
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
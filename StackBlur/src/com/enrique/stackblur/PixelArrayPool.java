@@ -0,0 +1,85 @@
+package com.enrique.stackblur;
+
+import java.util.ArrayList;
+
+/**
+ * Reuses the int[] working copies of the blurred pixels, so that blurring
+ * the same image again and again (e.g. while a slider moves) doesn't
+ * allocate a full image worth of memory every time.
+ * <p/>
+ * Arrays handed out may be longer than asked for; users must rely on the
+ * image width and height, not on the array length. At most
+ * {@link #MAX_POOLED_BYTES} stay pooled, {@link #clear()} drops them all.
+ */
+final class PixelArrayPool {
+
+	static final long MAX_POOLED_BYTES = Runtime.getRuntime().maxMemory() / 8;
+
+	private static final ArrayList<int[]> sFree = new ArrayList<int[]>();
+	private static long sPooledBytes;
+
+	private PixelArrayPool() {
+	}
+
+	/**
+	 * @return the smallest pooled array of at least {@code size} ints, or a new one
+	 */
+	static int[] acquire(int size) {
+		return acquire(size, BlurMetrics.DISABLED);
+	}
+
+	/**
+	 * Same as {@link #acquire(int)}, counting a new array as allocated by the blur
+	 */
+	static int[] acquire(int size, BlurMetrics metrics) {
+		synchronized (sFree) {
+			int best = -1;
+			for (int i = 0; i < sFree.size(); i++) {
+				int length = sFree.get(i).length;
+				if (length >= size && (best < 0 || length < sFree.get(best).length))
+					best = i;
+			}
+			if (best >= 0) {
+				int[] array = sFree.remove(best);
+				sPooledBytes -= 4L * array.length;
+				return array;
+			}
+		}
+		metrics.addAllocated(4L * size);
+		return new int[size];
+	}
+
+	/**
+	 * Give an array back. It is dropped if the pool is full.
+	 */
+	static void release(int[] array) {
+		synchronized (sFree) {
+			if (sPooledBytes + 4L * array.length > MAX_POOLED_BYTES)
+				return;
+			sFree.add(array);
+			sPooledBytes += 4L * array.length;
+		}
+	}
+
+	/**
+	 * Make sure {@code count} arrays of at least {@code size} ints are pooled.
+	 * @return false, allocating nothing, if they would not fit in the pool
+	 */
+	static boolean preallocate(long size, int count) {
+		if (4L * size * count > MAX_POOLED_BYTES)
+			return false;
+		ArrayList<int[]> arrays = new ArrayList<int[]>(count);
+		for (int i = 0; i < count; i++)
+			arrays.add(acquire((int) size));
+		for (int[] array : arrays)
+			release(array);
+		return true;
+	}
+
+	static void clear() {
+		synchronized (sFree) {
+			sFree.clear();
+			sPooledBytes = 0;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.enrique.stackblur;
+
+/**
+ * How much each pixel is blurred by {@link StackBlurManager#processVariable}:
+ * a weight from 0 (sharp) to 1 (blurred by the full radius).
+ * <p/>
+ * Use a depth or mask image through {@link #fromArray}, one of the tilt-shift
+ * gradients, or subclass it. Positions of the gradients are fractions of the
+ * image size, so the same map works for a preview and the full image.
+ */
+public abstract class RadiusMap {
+
+	/**
+	 * @return the blur weight of pixel (x, y) of a width x height image, from 0 to 1
+	 */
+	public abstract float weightAt(int x, int y, int width, int height);
+
+	/**
+	 * A map of weights of any size, e.g. a downscaled depth map, stretched over
+	 * the image and sampled at the nearest weight.
+	 * @param weights mapWidth * mapHeight values from 0 to 1, row after row
+	 */
+	public static RadiusMap fromArray(final float[] weights, final int mapWidth, final int mapHeight) {
+		if (weights.length < mapWidth * mapHeight)
+			throw new IllegalArgumentException("expected " + mapWidth * mapHeight + " weights, got " + weights.length);
+		return new RadiusMap() {
+			@Override
+			public float weightAt(int x, int y, int width, int height) {
+				int mx = (int) ((long) x * mapWidth / width);
+				int my = (int) ((long) y * mapHeight / height);
+				return weights[my * mapWidth + mx];
+			}
+		};
+	}
+
+	/**
+	 * Tilt-shift with a sharp band across the image.
+	 * @param focusY center of the band, as a fraction of the height
+	 * @param halfWidth half the height of the sharp band, as a fraction of the height
+	 * @param transition distance over which the blur goes from none to full
+	 *                   beyond the band, as a fraction of the height
+	 * @param angleDegrees rotation of the band around its center, 0 is horizontal
+	 */
+	public static RadiusMap linearTiltShift(final float focusY, final float halfWidth, final float transition,
+	                                        float angleDegrees) {
+		final float sin = (float) Math.sin(Math.toRadians(angleDegrees));
+		final float cos = (float) Math.cos(Math.toRadians(angleDegrees));
+		return new RadiusMap() {
+			@Override
+			public float weightAt(int x, int y, int width, int height) {
+				float dx = x - width * 0.5f;
+				float dy = y - height * focusY;
+				float distance = Math.abs(cos * dy - sin * dx) / height;
+				return smoothstep((distance - halfWidth) / transition);
+			}
+		};
+	}
+
+	/**
+	 * Tilt-shift with a sharp ellipse, e.g. around a face.
+	 * @param centerX center of the ellipse, as a fraction of the width
+	 * @param centerY center of the ellipse, as a fraction of the height
+	 * @param radiusX horizontal radius, as a fraction of the width
+	 * @param radiusY vertical radius, as a fraction of the height
+	 * @param transition distance over which the blur goes from none to full
+	 *                   outside the ellipse, relative to its radii
+	 */
+	public static RadiusMap ellipticalTiltShift(final float centerX, final float centerY,
+	                                            final float radiusX, final float radiusY, final float transition) {
+		return new RadiusMap() {
+			@Override
+			public float weightAt(int x, int y, int width, int height) {
+				float dx = (x - width * centerX) / (width * radiusX);
+				float dy = (y - height * centerY) / (height * radiusY);
+				float distance = (float) Math.sqrt(dx * dx + dy * dy);
+				return smoothstep((distance - 1) / transition);
+			}
+		};
+	}
+
+	/**
+	 * @return t clamped to [0, 1] and eased at both ends, so the edges of the
+	 * sharp area don't show
+	 */
+	static float smoothstep(float t) {
+		if (t <= 0)
+			return 0;
+		if (t >= 1)
+			return 1;
+		return t * t * (3 - 2 * t);
+	}
+}
@@ -0,0 +1,32 @@
+package com.enrique.stackblur;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes strips to a raw ARGB file: width * height big-endian ints, no header.
+ */
+public class RawStripSink implements StripSink {
+	private final DataOutputStream _out;
+	private final int _width;
+
+	public RawStripSink(File file, int width) throws IOException {
+		_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		_width = width;
+	}
+
+	@Override
+	public void writeRows(int top, int count, int[] pixels) throws IOException {
+		int n = count * _width;
+		for (int i = 0; i < n; i++)
+			_out.writeInt(pixels[i]);
+	}
+
+	@Override
+	public void close() throws IOException {
+		_out.close();
+	}
+}
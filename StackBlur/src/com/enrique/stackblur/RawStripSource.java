@@ -0,0 +1,44 @@
+package com.enrique.stackblur;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads strips of a raw ARGB file: width * height big-endian ints, no header.
+ */
+public class RawStripSource implements StripSource {
+	private final DataInputStream _in;
+	private final int _width;
+	private final int _height;
+
+	public RawStripSource(File file, int width, int height) throws IOException {
+		_in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		_width = width;
+		_height = height;
+	}
+
+	@Override
+	public int getWidth() {
+		return _width;
+	}
+
+	@Override
+	public int getHeight() {
+		return _height;
+	}
+
+	@Override
+	public void readRows(int top, int count, int[] pixels) throws IOException {
+		int n = count * _width;
+		for (int i = 0; i < n; i++)
+			pixels[i] = _in.readInt();
+	}
+
+	@Override
+	public void close() throws IOException {
+		_in.close();
+	}
+}
@@ -0,0 +1,197 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Gaussian blur with a recursive filter, after Young and van Vliet,
+ * "Recursive implementation of the Gaussian filter", Signal Processing 44 (1995).
+ * <p/>
+ * Each line is filtered by a third order causal filter followed by the same
+ * filter run backwards, so a pixel costs the same for any sigma, and sigma
+ * doesn't have to be an integer: the radius given to {@link #blur} is the
+ * standard deviation, in pixels, and can change smoothly in an animation.
+ * <p/>
+ * Rows and then columns are split into stripes run on the {@link BlurExecutor}.
+ * The four ARGB channels are filtered independently, the borders are
+ * extended with the edge pixels.
+ */
+class RecursiveGaussianBlurProcess implements BlurProcess {
+
+	/**
+	 * Smallest sigma the coefficients are defined for; below it the image is
+	 * returned unchanged
+	 */
+	static final float MIN_SIGMA = 0.5f;
+
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
+
+	RecursiveGaussianBlurProcess() {
+		this(BlurExecutor.getDefault());
+	}
+
+	RecursiveGaussianBlurProcess(BlurExecutor executor) {
+		_executor = executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
+	/**
+	 * @param sigma standard deviation of the Gaussian, in pixels
+	 */
+	@Override
+	public Bitmap blur(Bitmap original, float sigma) {
+		int w = original.getWidth();
+		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "RecursiveGaussianBlurProcess", w, h, sigma, cores);
+		long mark = metrics.mark();
+		int[] currentPixels = PixelArrayPool.acquire(w * h, metrics);
+		original.getPixels(currentPixels, 0, w, 0, 0, w, h);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
+
+		if (sigma >= MIN_SIGMA) {
+			double[] coefficients = coefficients(sigma);
+			ArrayList<BlurTask> horizontal = new ArrayList<BlurTask>(cores);
+			ArrayList<BlurTask> vertical = new ArrayList<BlurTask>(cores);
+			for (int i = 0; i < cores; i++) {
+				horizontal.add(new BlurTask(currentPixels, w, h, coefficients, cores, i, 1, metrics));
+				vertical.add(new BlurTask(currentPixels, w, h, coefficients, cores, i, 2, metrics));
+			}
+			try {
+				_executor.invokeAll(horizontal);
+				mark = metrics.lap(BlurMetrics.Stage.HORIZONTAL, mark);
+				_executor.invokeAll(vertical);
+				mark = metrics.lap(BlurMetrics.Stage.VERTICAL, mark);
+			} catch (InterruptedException e) {
+				// stripes may still be running: the array can't go back to the pool
+				return null;
+			}
+		}
+
+		Bitmap blurred = Bitmap.createBitmap(currentPixels, 0, w, w, h, Bitmap.Config.ARGB_8888);
+		PixelArrayPool.release(currentPixels);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
+	}
+
+	/**
+	 * @return {B, b1 / b0, b2 / b0, b3 / b0} of the recursion
+	 * {@code out[n] = B * in[n] + (b1 * out[n-1] + b2 * out[n-2] + b3 * out[n-3]) / b0}
+	 */
+	static double[] coefficients(float sigma) {
+		double q;
+		if (sigma >= 2.5f)
+			q = 0.98711 * sigma - 0.96330;
+		else
+			q = 3.97156 - 4.14554 * Math.sqrt(1 - 0.26891 * sigma);
+		double q2 = q * q;
+		double q3 = q2 * q;
+		double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+		double b2 = -(1.4281 * q2 + 1.26661 * q3);
+		double b3 = 0.422205 * q3;
+		return new double[]{1 - (b1 + b2 + b3) / b0, b1 / b0, b2 / b0, b3 / b0};
+	}
+
+	/**
+	 * Filter {@code n} pixels starting at {@code start}, {@code stride} apart, in place.
+	 * The four channels go through the filter together, so columns are only
+	 * read and written once.
+	 * @param line working buffer of at least 4 * n values
+	 */
+	static void filterLine(int[] pixels, int start, int n, int stride, double[] c, double[] line) {
+		double B = c[0], a1 = c[1], a2 = c[2], a3 = c[3];
+
+		// causal pass, started as if the first pixel extended to infinity
+		int p = pixels[start];
+		double a_1 = p >>> 24, r_1 = (p >>> 16) & 0xff, g_1 = (p >>> 8) & 0xff, b_1 = p & 0xff;
+		double a_2 = a_1, r_2 = r_1, g_2 = g_1, b_2 = b_1;
+		double a_3 = a_1, r_3 = r_1, g_3 = g_1, b_3 = b_1;
+		for (int i = 0, si = start; i < 4 * n; i += 4, si += stride) {
+			p = pixels[si];
+			double a = B * (p >>> 24) + a1 * a_1 + a2 * a_2 + a3 * a_3;
+			double r = B * ((p >>> 16) & 0xff) + a1 * r_1 + a2 * r_2 + a3 * r_3;
+			double g = B * ((p >>> 8) & 0xff) + a1 * g_1 + a2 * g_2 + a3 * g_3;
+			double b = B * (p & 0xff) + a1 * b_1 + a2 * b_2 + a3 * b_3;
+			line[i] = a;
+			line[i + 1] = r;
+			line[i + 2] = g;
+			line[i + 3] = b;
+			a_3 = a_2; a_2 = a_1; a_1 = a;
+			r_3 = r_2; r_2 = r_1; r_1 = r;
+			g_3 = g_2; g_2 = g_1; g_1 = g;
+			b_3 = b_2; b_2 = b_1; b_1 = b;
+		}
+
+		// anti-causal pass, started from the last causal output
+		int i = 4 * (n - 1);
+		a_1 = a_2 = a_3 = line[i];
+		r_1 = r_2 = r_3 = line[i + 1];
+		g_1 = g_2 = g_3 = line[i + 2];
+		b_1 = b_2 = b_3 = line[i + 3];
+		for (int si = start + (n - 1) * stride; i >= 0; i -= 4, si -= stride) {
+			double a = B * line[i] + a1 * a_1 + a2 * a_2 + a3 * a_3;
+			double r = B * line[i + 1] + a1 * r_1 + a2 * r_2 + a3 * r_3;
+			double g = B * line[i + 2] + a1 * g_1 + a2 * g_2 + a3 * g_3;
+			double b = B * line[i + 3] + a1 * b_1 + a2 * b_2 + a3 * b_3;
+			pixels[si] = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+			a_3 = a_2; a_2 = a_1; a_1 = a;
+			r_3 = r_2; r_2 = r_1; r_1 = r;
+			g_3 = g_2; g_2 = g_1; g_1 = g;
+			b_3 = b_2; b_2 = b_1; b_1 = b;
+		}
+	}
+
+	private static int clamp(double v) {
+		int value = (int) (v + 0.5);
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+
+	private static class BlurTask implements Callable<Void> {
+		private final int[] _src;
+		private final int _w;
+		private final int _h;
+		private final double[] _coefficients;
+		private final int _totalCores;
+		private final int _coreIndex;
+		private final int _round;
+		private final BlurMetrics _metrics;
+
+		public BlurTask(int[] src, int w, int h, double[] coefficients, int totalCores, int coreIndex, int round,
+		                BlurMetrics metrics) {
+			_src = src;
+			_w = w;
+			_h = h;
+			_coefficients = coefficients;
+			_totalCores = totalCores;
+			_coreIndex = coreIndex;
+			_round = round;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			if (_round == 1) {
+				double[] line = new double[4 * _w];
+				for (int y = _coreIndex * _h / _totalCores; y < (_coreIndex + 1) * _h / _totalCores; y++)
+					filterLine(_src, y * _w, _w, 1, _coefficients, line);
+			} else {
+				double[] line = new double[4 * _h];
+				for (int x = _coreIndex * _w / _totalCores; x < (_coreIndex + 1) * _w / _totalCores; x++)
+					filterLine(_src, x, _h, _w, _coefficients, line);
+			}
+			_metrics.addBusy(mark);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,54 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+/**
+ * Reads strips of a JPEG or PNG file with {@link BitmapRegionDecoder}, so the
+ * full image never has to be decoded.
+ */
+public class RegionDecoderStripSource implements StripSource {
+	private final BitmapRegionDecoder _decoder;
+	private final BitmapFactory.Options _options;
+	private final Rect _rect = new Rect();
+
+	public RegionDecoderStripSource(String path) throws IOException {
+		this(BitmapRegionDecoder.newInstance(path, false));
+	}
+
+	public RegionDecoderStripSource(BitmapRegionDecoder decoder) {
+		_decoder = decoder;
+		_options = new BitmapFactory.Options();
+		_options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+	}
+
+	@Override
+	public int getWidth() {
+		return _decoder.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return _decoder.getHeight();
+	}
+
+	@Override
+	public void readRows(int top, int count, int[] pixels) throws IOException {
+		int w = _decoder.getWidth();
+		_rect.set(0, top, w, top + count);
+		Bitmap region = _decoder.decodeRegion(_rect, _options);
+		if (region == null)
+			throw new IOException("could not decode rows " + top + " to " + (top + count));
+		region.getPixels(pixels, 0, w, 0, 0, w, count);
+		region.recycle();
+	}
+
+	@Override
+	public void close() {
+		_decoder.recycle();
+	}
+}
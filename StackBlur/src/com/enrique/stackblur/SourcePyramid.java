@@ -0,0 +1,162 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Mipmaps of a source image: level 0 is the image itself, every next level
+ * halves both sides by averaging 2x2 blocks, down to {@link #MIN_SIDE}.
+ * <p/>
+ * A blur of radius r on level l looks like a blur of radius r * 2^l on the
+ * image once scaled back up, for 4^l times less work, as long as r stays a
+ * few pixels. The levels are built once, in row stripes on the
+ * {@link BlurExecutor}, and reused by every blur of the same source.
+ */
+final class SourcePyramid {
+
+	/**
+	 * No level is halved further once its longest side is this small
+	 */
+	static final int MIN_SIDE = 32;
+
+	private final Bitmap[] _levels;
+	private final long _byteCount;
+
+	private SourcePyramid(Bitmap[] levels, long byteCount) {
+		_levels = levels;
+		_byteCount = byteCount;
+	}
+
+	/**
+	 * Build all the levels of {@code image}.
+	 * @return null if interrupted
+	 */
+	static SourcePyramid build(Bitmap image, BlurExecutor executor, BlurMetrics.Listener listener) {
+		int w = image.getWidth();
+		int h = image.getHeight();
+		int cores = executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(listener, "SourcePyramid", w, h, 0, cores);
+		long mark = metrics.mark();
+
+		int count = 1;
+		for (int side = Math.max(w, h); side > MIN_SIDE; side = (side + 1) / 2)
+			count++;
+		Bitmap[] levels = new Bitmap[count];
+		levels[0] = image;
+		long byteCount = 0;
+		if (count == 1) {
+			metrics.end();
+			return new SourcePyramid(levels, byteCount);
+		}
+
+		int[] src = PixelArrayPool.acquire(w * h, metrics);
+		int[] dst = PixelArrayPool.acquire(((w + 1) / 2) * ((h + 1) / 2), metrics);
+		image.getPixels(src, 0, w, 0, 0, w, h);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
+
+		int sw = w, sh = h;
+		try {
+			for (int l = 1; l < count; l++) {
+				int dw = (sw + 1) / 2, dh = (sh + 1) / 2;
+				int stripes = Math.min(cores, dh);
+				ArrayList<HalveTask> tasks = new ArrayList<HalveTask>(stripes);
+				for (int i = 0; i < stripes; i++)
+					tasks.add(new HalveTask(src, sw, sh, dst, dw, i * dh / stripes, (i + 1) * dh / stripes, metrics));
+				executor.invokeAll(tasks);
+				mark = metrics.lap(BlurMetrics.Stage.DOWNSAMPLE, mark);
+
+				levels[l] = Bitmap.createBitmap(dst, 0, dw, dw, dh, Bitmap.Config.ARGB_8888);
+				byteCount += 4L * dw * dh;
+				mark = metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+
+				// the level just made is the source of the next one, which fits in the old source
+				int[] swap = src;
+				src = dst;
+				dst = swap;
+				sw = dw;
+				sh = dh;
+			}
+		} catch (InterruptedException e) {
+			// stripes may still be running: the arrays can't go back to the pool
+			return null;
+		}
+		PixelArrayPool.release(src);
+		PixelArrayPool.release(dst);
+		metrics.addAllocated(byteCount);
+		metrics.end();
+		return new SourcePyramid(levels, byteCount);
+	}
+
+	Bitmap getLevel(int level) {
+		return _levels[level];
+	}
+
+	int getLevelCount() {
+		return _levels.length;
+	}
+
+	/**
+	 * @return bytes held by the levels made for the pyramid, not counting the source
+	 */
+	long getByteCount() {
+		return _byteCount;
+	}
+
+	/**
+	 * @return the coarsest level on which {@code radius} still spans at least
+	 * {@code minRadius} pixels, 0 if none does
+	 */
+	int levelFor(float radius, float minRadius) {
+		int level = 0;
+		while (level + 1 < _levels.length && radius / (2 << level) >= minRadius)
+			level++;
+		return level;
+	}
+
+	private static class HalveTask implements Callable<Void> {
+		private final int[] _src;
+		private final int _sw;
+		private final int _sh;
+		private final int[] _dst;
+		private final int _dw;
+		private final int _firstRow;
+		private final int _lastRow;
+		private final BlurMetrics _metrics;
+
+		HalveTask(int[] src, int sw, int sh, int[] dst, int dw, int firstRow, int lastRow, BlurMetrics metrics) {
+			_src = src;
+			_sw = sw;
+			_sh = sh;
+			_dst = dst;
+			_dw = dw;
+			_firstRow = firstRow;
+			_lastRow = lastRow;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			for (int y = _firstRow; y < _lastRow; y++) {
+				// an odd last row or column is averaged with itself
+				int top = 2 * y * _sw;
+				int bottom = Math.min(2 * y + 1, _sh - 1) * _sw;
+				for (int x = 0, di = y * _dw; x < _dw; x++, di++) {
+					int left = 2 * x;
+					int right = Math.min(left + 1, _sw - 1);
+					int p0 = _src[top + left], p1 = _src[top + right];
+					int p2 = _src[bottom + left], p3 = _src[bottom + right];
+					// two channels per int, 10 bits of room each for the sum of four
+					int ag = ((p0 >>> 8) & 0xff00ff) + ((p1 >>> 8) & 0xff00ff) +
+							((p2 >>> 8) & 0xff00ff) + ((p3 >>> 8) & 0xff00ff) + 0x20002;
+					int rb = (p0 & 0xff00ff) + (p1 & 0xff00ff) + (p2 & 0xff00ff) + (p3 & 0xff00ff) + 0x20002;
+					_dst[di] = ((ag << 6) & 0xff00ff00) | ((rb >>> 2) & 0xff00ff);
+				}
+			}
+			_metrics.addBusy(mark);
+			return null;
+		}
+	}
+}
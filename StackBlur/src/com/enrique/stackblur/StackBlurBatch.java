@@ -0,0 +1,269 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Blurs many images at once (gallery thumbnails, backgrounds...).
+ * <p/>
+ * Small images are blurred whole, one image per pool thread, so a batch of
+ * thumbnails keeps every core busy without striping overhead. Large images
+ * are striped across the pool like {@link StackBlurManager#processStarBlur}.
+ * The pixels in flight are bounded by a memory budget: an image is only
+ * started once its buffers fit, and results are handed out as soon as they
+ * complete through the iterator returned by {@link #submit}.
+ */
+public class StackBlurBatch {
+
+	/**
+	 * Images up to this many pixels are blurred on a single thread.
+	 */
+	static final int SMALL_IMAGE_PIXELS = 512 * 512;
+
+	/**
+	 * Bytes needed per pixel while blurring: the int[] working copy plus
+	 * the resulting ARGB_8888 bitmap.
+	 */
+	private static final int BYTES_PER_PIXEL = 8;
+
+	private static int sBatchIndex;
+
+	public static class Request {
+		final Bitmap image;
+		final int radius;
+		final Object tag;
+
+		public Request(Bitmap image, int radius) {
+			this(image, radius, null);
+		}
+
+		/**
+		 * @param tag any caller object, handed back with the result
+		 */
+		public Request(Bitmap image, int radius, Object tag) {
+			this.image = image;
+			this.radius = radius;
+			this.tag = tag;
+		}
+
+		public Bitmap getImage() {
+			return image;
+		}
+
+		public int getRadius() {
+			return radius;
+		}
+
+		public Object getTag() {
+			return tag;
+		}
+	}
+
+	public static class Result {
+		private final Request _request;
+		private final Bitmap _blurred;
+		private final Throwable _error;
+
+		Result(Request request, Bitmap blurred, Throwable error) {
+			_request = request;
+			_blurred = blurred;
+			_error = error;
+		}
+
+		public Request getRequest() {
+			return _request;
+		}
+
+		/**
+		 * @return the blurred image, or null if blurring failed
+		 */
+		public Bitmap getBlurred() {
+			return _blurred;
+		}
+
+		public Throwable getError() {
+			return _error;
+		}
+	}
+
+	private final long _maxBytesInFlight;
+	private final int _budgetUnits;
+	private final Semaphore _budget;
+	private final ExecutorService _dispatcher;
+	private final ExecutorService _striped;
+	private final BlurExecutor _executor;
+	private volatile boolean _shutdown;
+
+	/**
+	 * @param maxBytesInFlight upper bound of the memory used by images being blurred.
+	 *                         An image bigger than the whole budget runs alone. The
+	 *                         working arrays of finished images go back to a pool
+	 *                         shared by all blurs, which may keep up to an eighth of
+	 *                         the heap on top of this budget (see
+	 *                         {@link StackBlurManager#releasePooledMemory}).
+	 */
+	public StackBlurBatch(long maxBytesInFlight) {
+		this(maxBytesInFlight, BlurExecutor.getDefault());
+	}
+
+	/**
+	 * @param executor runs small images whole and the stripes of large ones
+	 */
+	public StackBlurBatch(long maxBytesInFlight, BlurExecutor executor) {
+		_maxBytesInFlight = maxBytesInFlight;
+		_executor = executor;
+		// permits are counted in KB so that large budgets fit in an int
+		_budgetUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytesInFlight >> 10));
+		_budget = new Semaphore(_budgetUnits, true);
+		int index;
+		synchronized (StackBlurBatch.class) {
+			index = sBatchIndex++;
+		}
+		_dispatcher = BlurThreadFactory.singleThread("StackBlurBatch-" + index + "-dispatch",
+				BlurThreadFactory.BLUR_PRIORITY);
+		_striped = BlurThreadFactory.singleThread("StackBlurBatch-" + index + "-large",
+				BlurThreadFactory.BLUR_PRIORITY);
+	}
+
+	/**
+	 * Default budget: a quarter of the maximum heap.
+	 */
+	public StackBlurBatch() {
+		this(Runtime.getRuntime().maxMemory() / 4);
+	}
+
+	public long getMaxBytesInFlight() {
+		return _maxBytesInFlight;
+	}
+
+	/**
+	 * Queue all the requests and return immediately.
+	 * @return an iterator giving back one result per request, in completion order.
+	 * {@link Iterator#next()} blocks until the next image is done. A request that
+	 * can't be blurred (no image, batch shut down...) gives a result with an error.
+	 */
+	public Iterator<Result> submit(Collection<Request> requests) {
+		final ArrayList<Request> pending = new ArrayList<Request>(requests);
+		final BlockingQueue<Result> completed = new LinkedBlockingQueue<Result>();
+
+		Runnable dispatcher = new Runnable() {
+			@Override
+			public void run() {
+				for (Request request : pending) {
+					int acquired = 0;
+					try {
+						int units = unitsFor(request.image);
+						_budget.acquire(units);
+						acquired = units;
+						dispatch(request, units, completed);
+					} catch (Throwable t) {
+						// the iterator waits for a result per request, whatever went wrong
+						_budget.release(acquired);
+						completed.add(new Result(request, null, t));
+					}
+				}
+			}
+		};
+		try {
+			if (_shutdown)
+				throw new RejectedExecutionException("batch shut down");
+			_dispatcher.execute(dispatcher);
+		} catch (RejectedExecutionException e) {
+			for (Request request : pending)
+				completed.add(new Result(request, null, e));
+		}
+
+		final int total = pending.size();
+		return new Iterator<Result>() {
+			private int _delivered;
+
+			@Override
+			public boolean hasNext() {
+				return _delivered < total;
+			}
+
+			@Override
+			public Result next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				try {
+					Result result = completed.take();
+					_delivered++;
+					return result;
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new NoSuchElementException("interrupted while waiting for the next result");
+				}
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Stop accepting work. Images already started still complete; the others,
+	 * and those submitted later, come back as results with a
+	 * {@link RejectedExecutionException}. The executor given to the batch is
+	 * not shut down.
+	 */
+	public void shutdown() {
+		_shutdown = true;
+		_dispatcher.shutdown();
+		_striped.shutdown();
+	}
+
+	private int unitsFor(Bitmap image) {
+		long bytes = (long) image.getWidth() * image.getHeight() * BYTES_PER_PIXEL;
+		return (int) Math.max(1, Math.min(_budgetUnits, bytes >> 10));
+	}
+
+	/**
+	 * @throws RejectedExecutionException once shut down; the caller then gives
+	 * back the units
+	 */
+	private void dispatch(final Request request, final int units, final BlockingQueue<Result> completed) {
+		if (_shutdown)
+			throw new RejectedExecutionException("batch shut down");
+		final Bitmap image = request.image;
+		final boolean small = image.getWidth() * image.getHeight() <= SMALL_IMAGE_PIXELS;
+		Runnable job = new Runnable() {
+			@Override
+			public void run() {
+				Bitmap blurred = null;
+				Throwable error = null;
+				try {
+					if (_shutdown)
+						throw new RejectedExecutionException("batch shut down");
+					blurred = new StackJavaBlurProcess(small ? BlurExecutor.callingThread() : _executor)
+							.blur(image, request.radius);
+					if (blurred == null)
+						error = new InterruptedException("interrupted while blurring");
+				} catch (Throwable t) {
+					error = t;
+				} finally {
+					_budget.release(units);
+				}
+				completed.add(new Result(request, blurred, error));
+			}
+		};
+		// large images run one at a time on their own thread, which takes
+		// part in their stripes, rather than holding a pool thread the small
+		// images could use
+		if (small)
+			_executor.execute(job);
+		else
+			_striped.execute(job);
+	}
+}
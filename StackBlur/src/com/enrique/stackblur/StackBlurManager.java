@@ -29,22 +29,75 @@ package com.enrique.stackblur;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.util.Log;
 
-import java.io.FileOutputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Future;
 
 public class StackBlurManager {
-	static final int EXECUTOR_THREADS = Runtime.getRuntime().availableProcessors();
-	static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(EXECUTOR_THREADS);
+	private static final String TAG = "StackBlurManager";
 
-	private static volatile boolean hasRS = true;
+	/**
+	 * The blurs of the process* methods, for {@link #warmUp}
+	 */
+	public enum Algorithm {
+		/** {@link #process} */
+		GAUSSIAN,
+		/** {@link #processStarBlur} */
+		STACK,
+		/** {@link #processHorizontal} */
+		HORIZONTAL,
+		/** {@link #processVertical} */
+		VERTICAL,
+		/** {@link #processNatively} */
+		NATIVE_STACK,
+		/** {@link #processBoxNatively} */
+		NATIVE_BOX,
+		/** {@link #processRadial} */
+		RADIAL,
+		/** {@link #processCircular} */
+		CIRCULAR,
+		/** {@link #processAuto}, warming up means calibrating its backend table */
+		AUTO,
+		/** {@link #processRecursiveGaussian} */
+		RECURSIVE_GAUSSIAN,
+		/** {@link #processVariable}, warmed up with a linear tilt-shift */
+		VARIABLE,
+		/** {@link #processMotion}, warmed up at an angle */
+		MOTION,
+		/** {@link #processPyramid} */
+		PYRAMID,
+		/** {@link #processBokeh}, warmed up with a highlight boost */
+		BOKEH,
+		/** {@link #processKernel}, warmed up with a disc */
+		KERNEL
+	}
+
+	private static final int WARM_UP_SIDE = 128;
+	private static final int WARM_UP_RADIUS = 10;
+	private static final int WARM_UP_MAX_RUNS = 30;
+
+	/**
+	 * Smallest radius, in pixels of the level, of a blur started from the pyramid
+	 */
+	private static final float PREVIEW_MIN_RADIUS = 3;
 
 	/**
 	 * Original image
 	 */
 	private Bitmap _image;
 
+	/**
+	 * Pixels of the image per pixel of the size it is displayed at, see {@link #scaleRadius}
+	 */
+	private float _radiusScale = 1;
+
+	/**
+	 * Mipmaps of the original image, built on first use
+	 */
+	private SourcePyramid _pyramid;
+
 	/**
 	 * Most recent result of blurring
 	 */
@@ -55,47 +108,268 @@ public class StackBlurManager {
 	 */
 	private final BlurProcess _blurProcess;
 
+	/**
+	 * Where the blurs of this manager run
+	 */
+	private final BlurExecutor _executor;
+
+	/**
+	 * Whether {@link #process}, {@link #processHorizontal} and {@link #processVertical} blur in linear light
+	 */
+	private boolean _linearLight;
+
+	/**
+	 * Receives the timings of every blur of this manager, null when not measuring
+	 */
+	private BlurMetrics.Listener _metricsListener;
+
 	/**
 	 * Constructor method (basic initialization and construction of the pixel array)
 	 * @param image The image that will be analyed
 	 */
 	public StackBlurManager(Bitmap image) {
+		this(image, BlurExecutor.getDefault());
+	}
+
+	/**
+	 * @param executor runs the blurs of this manager and bounds their parallelism,
+	 *                 see {@link BlurExecutor.Builder} and {@link BlurExecutor#wrap}
+	 */
+	public StackBlurManager(Bitmap image, BlurExecutor executor) {
 		_image = image;
-		_blurProcess = new JavaBlurProcess(1);
+		_executor = executor;
+		_blurProcess = new JavaBlurProcess(1, executor);
 	}
 
 	public StackBlurManager(Context mContext,int id) {
-		_image= BitmapFactory.decodeResource(mContext.getResources(),id);
-		_blurProcess = new JavaBlurProcess(1);
+		this(BitmapFactory.decodeResource(mContext.getResources(),id));
+	}
+
+	/**
+	 * Decode the resource only as large as needed, see {@link BitmapLoader}
+	 * @param targetWidth width of the box the blurred image is fitted into for display
+	 * @param targetHeight height of that box
+	 * @param radius smallest radius it will be blurred with, in pixels of the target;
+	 *               radii of the process methods then go through {@link #scaleRadius}
+	 */
+	public StackBlurManager(Context mContext, int id, int targetWidth, int targetHeight, int radius) {
+		this(BitmapLoader.decodeResource(mContext.getResources(), id, targetWidth, targetHeight, radius));
+		_radiusScale = radiusScale(_image, targetWidth, targetHeight);
+	}
+
+	/**
+	 * Decode the file only as large as needed, see {@link BitmapLoader} and
+	 * {@link #StackBlurManager(Context, int, int, int, int)}
+	 */
+	public StackBlurManager(String path, int targetWidth, int targetHeight, int radius) {
+		this(BitmapLoader.decodeFile(path, targetWidth, targetHeight, radius));
+		_radiusScale = radiusScale(_image, targetWidth, targetHeight);
+	}
+
+	public BlurExecutor getExecutor() {
+		return _executor;
+	}
+
+	/**
+	 * Measure the following blurs of this manager: per stage times, bytes
+	 * allocated and thread utilization, see {@link BlurMetrics}.
+	 * @param listener null (the default) stops measuring; blurs then don't read the clock at all
+	 */
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
+	/**
+	 * Blur in linear light, so the border between bright and dark areas
+	 * doesn't darken as it does when sRGB values are averaged. Applies to
+	 * {@link #process}, {@link #processHorizontal} and {@link #processVertical};
+	 * the conversions happen in their first and last pass, through lookup
+	 * tables, see {@link LinearLight}.
+	 * @param linearLight false (the default) blurs the sRGB values as they are
+	 */
+	public void setLinearLight(boolean linearLight) {
+		_linearLight = linearLight;
 	}
 
 	public void setBitmap(Bitmap image){
 		_image = image;
+		_radiusScale = 1;
+		_pyramid = null;
+	}
+
+	/**
+	 * Replace the image with one decoded for a display size, e.g. by
+	 * {@link BitmapLoader#decodeFile}, see {@link #scaleRadius}
+	 */
+	public void setBitmap(Bitmap image, int targetWidth, int targetHeight) {
+		setBitmap(image);
+		_radiusScale = radiusScale(image, targetWidth, targetHeight);
+	}
+
+	/**
+	 * @param radius a radius in pixels of the size the image is displayed at
+	 * @return the same radius in pixels of the image, for the process methods;
+	 * unchanged unless the image was decoded for a target size
+	 */
+	public int scaleRadius(int radius) {
+		return Math.max(1, Math.round(radius * _radiusScale));
+	}
+
+	private static float radiusScale(Bitmap image, int targetWidth, int targetHeight) {
+		if (image == null || targetWidth <= 0 || targetHeight <= 0)
+			return 1;
+		// fitted into the target, the image side that fills it sets the scale
+		return Math.max((float) image.getWidth() / targetWidth, (float) image.getHeight() / targetHeight);
 	}
 
+
 	/**
 	 * Process the image on the given radius. Radius must be at least 1
 	 * @param radius
 	 */
 	public Bitmap process(int radius) {
-		_result = _blurProcess.blur(_image, radius);
-		return _result;
+		BlurProcess blur = _linearLight ? new JavaBlurProcess(1, true, _executor) : _blurProcess;
+		return runBlur(blur, radius);
+	}
+
+	/**
+	 * Stack blur with whichever backend (Java on one thread, Java striped or
+	 * native) measured fastest on this device for the image size and radius,
+	 * on the executor of this manager. The first call starts calibrating in
+	 * the background (see {@link BlurBackendTable}); until it is done the Java
+	 * blur striped over the executor is used. {@link #warmUp} calibrates ahead.
+	 */
+	public Bitmap processAuto(int radius) {
+		BlurProcess blur = BlurBackendTable.processFor(_image.getWidth(), _image.getHeight(), radius, _executor);
+		return runBlur(blur, radius);
+	}
+
+	/**
+	 * The backend decision table of {@link #processAuto} for the default
+	 * executor, calibrated on the calling thread if it isn't yet
+	 */
+	public static BlurBackendTable getBackendTable() {
+		return BlurBackendTable.get();
+	}
+
+	/**
+	 * Gaussian blur whose cost doesn't depend on sigma, see {@link RecursiveGaussianBlurProcess}
+	 * @param sigma standard deviation in pixels; fractional values blur smoothly in between,
+	 *              e.g. to animate the blur
+	 */
+	public Bitmap processRecursiveGaussian(float sigma) {
+		BlurProcess blur = new RecursiveGaussianBlurProcess(_executor);
+		return runBlur(blur, sigma);
+	}
+
+	/**
+	 * Blur each pixel by its own radius, e.g. for depth of field or tilt-shift.
+	 * The cost doesn't depend on the radius, see {@link VariableBlurProcess}.
+	 * @param map weight of the radius at each pixel, from 0 (sharp) to 1
+	 * @param radius radius of the pixels of weight 1; fractional values blur smoothly
+	 */
+	public Bitmap processVariable(RadiusMap map, float radius) {
+		BlurProcess blur = new VariableBlurProcess(map, VariableBlurProcess.DEFAULT_PASSES, _executor);
+		return runBlur(blur, radius);
 	}
 
 	public Bitmap processStarBlur(int radius) {
-		BlurProcess blur=new StackJavaBlurProcess();
-		_result = blur.blur(_image, radius);
-		return _result;
+		BlurProcess blur=new StackJavaBlurProcess(_executor);
+		return runBlur(blur, radius);
 	}
 
 	public Bitmap processHorizontal(int radius) {
-		BlurProcess blur=new JavaBlurProcess(2);
-		_result = blur.blur(_image, radius);
-		return _result;
+		BlurProcess blur=new JavaBlurProcess(2, _linearLight, _executor);
+		return runBlur(blur, radius);
 	}
 	public Bitmap processVertical(int radius) {
-		BlurProcess blur=new JavaBlurProcess(3);
-		_result = blur.blur(_image, radius);
+		BlurProcess blur=new JavaBlurProcess(3, _linearLight, _executor);
+		return runBlur(blur, radius);
+	}
+
+	/**
+	 * Motion blur in any direction, see {@link MotionBlurProcess}
+	 * @param radius half the length of the motion, in pixels
+	 * @param angleDegrees direction of the motion, 0 is horizontal, 90 vertical
+	 */
+	public Bitmap processMotion(int radius, float angleDegrees) {
+		BlurProcess blur = new MotionBlurProcess(angleDegrees, _executor);
+		return runBlur(blur, radius);
+	}
+
+	/**
+	 * Blur of a very large radius, e.g. 50 to 500 for a backdrop, through a
+	 * down and up sampling pyramid, see {@link DualKawaseBlurProcess}. It
+	 * starts from mipmaps of the image, built on the first call and shared
+	 * with {@link #processPreview}.
+	 * @param radius comparable to the radius of {@link #process}
+	 */
+	public Bitmap processPyramid(int radius) {
+		SourcePyramid mipmaps = radius >= DualKawaseBlurProcess.MIN_RADIUS ? getPyramid() : null;
+		BlurProcess blur = new DualKawaseBlurProcess(mipmaps, _executor);
+		return runBlur(blur, radius);
+	}
+
+	/**
+	 * Lens blur: pixels spread into discs and highlights into round bokeh,
+	 * see {@link BokehBlurProcess}. Costs more than the other blurs, but only
+	 * in proportion to the radius.
+	 * @param radius radius of the discs, in pixels
+	 * @param highlightBoost 0 for none; around 2 to 4 keeps lights bright in dark scenes
+	 */
+	public Bitmap processBokeh(int radius, float highlightBoost) {
+		BlurProcess blur = new BokehBlurProcess(highlightBoost, _executor);
+		return runBlur(blur, radius);
+	}
+
+	/**
+	 * Convolve the image with any kernel, e.g. a bokeh shape drawn in a
+	 * bitmap or a measured point spread function. Large kernels go through
+	 * fast Fourier transforms, see {@link ConvolutionBlurProcess}.
+	 */
+	public Bitmap processKernel(BlurKernel kernel) {
+		BlurProcess blur = new ConvolutionBlurProcess(kernel, _executor);
+		return runBlur(blur, Math.max(kernel.getWidth(), kernel.getHeight()) / 2);
+	}
+
+	/**
+	 * Quick stack blur for a preview: the blur starts from the smallest
+	 * mipmap of the image on which the radius is still a few pixels, so large
+	 * radii cost little. The mipmaps are built on the first call and reused
+	 * until {@link #setBitmap}.
+	 * @return the blurred mipmap, smaller than the image by a power of two; scale
+	 * it up to display it. It is not kept as the result of
+	 * {@link #returnBlurredImage} or {@link #saveIntoFile}, which stay full size.
+	 */
+	public Bitmap processPreview(int radius) {
+		SourcePyramid pyramid = getPyramid();
+		if (pyramid == null)
+			return null;
+		int level = pyramid.levelFor(radius, PREVIEW_MIN_RADIUS);
+		BlurProcess blur = new StackJavaBlurProcess(_executor);
+		blur.setMetricsListener(_metricsListener);
+		return blur.blur(pyramid.getLevel(level), (float) radius / (1 << level));
+	}
+
+	/**
+	 * @return bytes held by the mipmaps of the image, 0 until a blur needed them
+	 */
+	public long getPyramidByteCount() {
+		return _pyramid != null ? _pyramid.getByteCount() : 0;
+	}
+
+	/**
+	 * @return the mipmaps of the image, built in parallel on first use; null if interrupted
+	 */
+	private SourcePyramid getPyramid() {
+		if (_pyramid == null)
+			_pyramid = SourcePyramid.build(_image, _executor, _metricsListener);
+		return _pyramid;
+	}
+
+	private Bitmap runBlur(BlurProcess process, float radius) {
+		process.setMetricsListener(_metricsListener);
+		_result = process.blur(_image, radius);
 		return _result;
 	}
 
@@ -108,18 +382,31 @@ public class StackBlurManager {
 	}
 
 	/**
-	 * Save the image into the file system
+	 * Save the image into the file system as PNG, on the calling thread
 	 * @param path The path where to save the image
+	 * @return false if the image could not be written
 	 */
-	public void saveIntoFile(String path) {
+	public boolean saveIntoFile(String path) {
 		try {
-			FileOutputStream out = new FileOutputStream(path);
-			_result.compress(Bitmap.CompressFormat.PNG, 90, out);
-		} catch (Exception e) {
-			e.printStackTrace();
+			BitmapSaver.save(_result, new File(path), BitmapSaver.Format.PNG, 90);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "could not save " + path, e);
+			return false;
 		}
 	}
 
+	/**
+	 * Save the image on the background encoder thread, so the next blur can
+	 * start right away
+	 * @param path The path where to save the image
+	 * @param quality 0-100, used by JPEG and WEBP
+	 * @return completes with the written file once encoding is done
+	 */
+	public Future<File> saveIntoFileAsync(String path, BitmapSaver.Format format, int quality) {
+		return BitmapSaver.saveAsync(_result, new File(path), format, quality);
+	}
+
 	/**
 	 * Returns the original image as a bitmap
 	 * @return the original bitmap image
@@ -129,39 +416,246 @@ public class StackBlurManager {
 	}
 
 	/**
-	 * Process the image using a native library
+	 * Start loading the native library on a background thread, e.g. from
+	 * {@code Application.onCreate}, so the first native blur doesn't pay for it.
+	 * @return completes with false if the library is missing for this ABI; native
+	 * blurs then fall back to the Java kernels
+	 */
+	public static Future<Boolean> loadNativeAsync() {
+		return NativeLibrary.loadAsync();
+	}
+
+	/**
+	 * @return true if the native library is loaded. Never blocks.
+	 */
+	public static boolean isNativeLoaded() {
+		return NativeLibrary.isLoaded();
+	}
+
+	/**
+	 * Get the given algorithms up to speed before the first real blur, e.g.
+	 * during a splash screen: starts the pool threads, loads the native
+	 * library if needed, blurs a small synthetic image until its time stops
+	 * improving (i.e. the kernels are compiled) and pools a working buffer
+	 * for the largest expected image. Runs on the calling thread, so call it
+	 * from a background one. Warms up the default executor, see
+	 * {@link #warmUp(BlurExecutor, int, int, Algorithm...)} for others.
+	 * @param maxWidth width of the largest image about to be blurred
+	 * @param maxHeight height of the largest image about to be blurred
+	 * @return how long the warm-up took, in milliseconds
+	 */
+	public static long warmUp(int maxWidth, int maxHeight, Algorithm... algorithms) {
+		return warmUp(BlurExecutor.getDefault(), maxWidth, maxHeight, algorithms);
+	}
+
+	/**
+	 * Same as {@link #warmUp(int, int, Algorithm...)}, for managers given
+	 * their own executor: its threads are started and the algorithms are
+	 * run on it.
+	 */
+	public static long warmUp(BlurExecutor executor, int maxWidth, int maxHeight, Algorithm... algorithms) {
+		long start = System.nanoTime();
+		executor.prestart();
+		for (Algorithm algorithm : algorithms) {
+			// wait for it, or the native algorithms would warm up their Java fallback
+			if (algorithm == Algorithm.NATIVE_STACK || algorithm == Algorithm.NATIVE_BOX || algorithm == Algorithm.AUTO)
+				NativeLibrary.isAvailable();
+		}
+
+		Bitmap image = BlurBackendTable.probe(WARM_UP_SIDE);
+		for (Algorithm algorithm : algorithms) {
+			if (algorithm == Algorithm.AUTO) {
+				BlurBackendTable.get(executor);
+				continue;
+			}
+			BlurProcess process = newProcess(algorithm, executor);
+			long best = Long.MAX_VALUE;
+			int notFaster = 0;
+			for (int i = 0; i < WARM_UP_MAX_RUNS && notFaster < 3; i++) {
+				long runStart = System.nanoTime();
+				process.blur(image, WARM_UP_RADIUS);
+				long time = System.nanoTime() - runStart;
+				if (time < best - best / 20) {
+					best = time;
+					notFaster = 0;
+				} else {
+					notFaster++;
+				}
+			}
+		}
+		// a buffer the pool would drop is only garbage on the splash screen
+		long pixels = (long) maxWidth * maxHeight;
+		if (!PixelArrayPool.preallocate(pixels, 1))
+			Log.i(TAG, "no working buffer pooled for " + maxWidth + "x" + maxHeight + ", more than "
+					+ PixelArrayPool.MAX_POOLED_BYTES / (1024 * 1024) + " MB");
+
+		long millis = (System.nanoTime() - start) / 1000000;
+		Log.i(TAG, "warm-up took " + millis + " ms");
+		return millis;
+	}
+
+	/**
+	 * Drop the working buffers kept for later blurs, e.g. from {@code onTrimMemory}
+	 */
+	public static void releasePooledMemory() {
+		PixelArrayPool.clear();
+	}
+
+	private static BlurProcess newProcess(Algorithm algorithm, BlurExecutor executor) {
+		switch (algorithm) {
+			case STACK:
+				return new StackJavaBlurProcess(executor);
+			case HORIZONTAL:
+				return new JavaBlurProcess(2, executor);
+			case VERTICAL:
+				return new JavaBlurProcess(3, executor);
+			case NATIVE_STACK:
+				return new NativeBlurProcess(1, executor);
+			case NATIVE_BOX:
+				return new NativeBlurProcess(2, executor);
+			case RADIAL:
+				return new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_RadialBlur, executor);
+			case CIRCULAR:
+				return new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_CircularBlur, executor);
+			case RECURSIVE_GAUSSIAN:
+				return new RecursiveGaussianBlurProcess(executor);
+			case MOTION:
+				return new MotionBlurProcess(30, executor);
+			case PYRAMID:
+				return new DualKawaseBlurProcess(executor);
+			case BOKEH:
+				return new BokehBlurProcess(3, executor);
+			case KERNEL:
+				return new ConvolutionBlurProcess(BlurKernel.disc(WARM_UP_RADIUS), executor);
+			case VARIABLE:
+				return new VariableBlurProcess(RadiusMap.linearTiltShift(0.5f, 0.1f, 0.2f, 0),
+						VariableBlurProcess.DEFAULT_PASSES, executor);
+			default:
+				return new JavaBlurProcess(1, executor);
+		}
+	}
+
+	/**
+	 * Process the image using a native library. Until it has finished loading
+	 * (see {@link #loadNativeAsync}) the Java kernels are used instead.
 	 */
 	public Bitmap processNatively(int radius) {
-		NativeBlurProcess blur = new NativeBlurProcess();
-		_result = blur.blur(_image, radius);
-		return _result;
+		NativeBlurProcess blur = new NativeBlurProcess(1, _executor);
+		return runBlur(blur, radius);
 	}
 
 	public Bitmap processRadial(int radius) {
-		BlurProcess blur = new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_RadialBlur);
-		_result = blur.blur(_image, radius);
-		return _result;
+		BlurProcess blur = new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_RadialBlur, _executor);
+		return runBlur(blur, radius);
 	}
 
 	public Bitmap processRadial(int radius,int centerX,int centerY) {
-		BlurProcess blur = new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_RadialBlur,centerX,centerY);
-		_result = blur.blur(_image, radius);
-		return _result;
+		BlurProcess blur = new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_RadialBlur,centerX,centerY, _executor);
+		return runBlur(blur, radius);
 	}
 
 	public Bitmap processCircular(int radius) {
-		BlurProcess blur = new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_CircularBlur );
-		_result = blur.blur(_image, radius);
-		return _result;
+		BlurProcess blur = new JavaRadialBlurProcess(JavaRadialBlurProcess.TYPE_CircularBlur, _executor);
+		return runBlur(blur, radius);
 	}
 
 	/**
 	 * Process the image using a native library
 	 */
 	public Bitmap processBoxNatively(int radius) {
-		NativeBlurProcess blur = new NativeBlurProcess(2);
-		_result = blur.blur(_image, radius);
-		return _result;
+		NativeBlurProcess blur = new NativeBlurProcess(2, _executor);
+		return runBlur(blur, radius);
+	}
+
+	/**
+	 * Blur a NV21 camera frame in place, without converting it to RGB.
+	 * The chroma planes are blurred with half the radius.
+	 * @param nv21 the frame, Y plane followed by the interleaved VU plane
+	 * @param width even width of the frame
+	 * @param height even height of the frame
+	 * @param radius the radius in pixels of the Y plane
+	 * @return the same array, blurred, or null if the thread was interrupted:
+	 * the frame may then still be written to and should be dropped
+	 * @throws IllegalArgumentException for odd sizes, which NV21 can't have
+	 */
+	public static byte[] processNV21(byte[] nv21, int width, int height, int radius) {
+		if (!new YuvBlurProcess(BlurExecutor.getDefault()).blurNV21(nv21, width, height, radius))
+			return null;
+		return nv21;
+	}
+
+	/**
+	 * Blur the planes of a YUV_420_888 image in place, using the row and pixel
+	 * strides reported by each {@code Image.Plane}.
+	 * @return false if the thread was interrupted: the planes may then still
+	 * be written to and should be dropped
+	 */
+	public static boolean processYUV420(byte[] y, int yRowStride,
+	                                    byte[] u, byte[] v, int uvRowStride, int uvPixelStride,
+	                                    int width, int height, int radius) {
+		return new YuvBlurProcess(BlurExecutor.getDefault()).blurYUV420(y, yRowStride, u, 0, v, 0, uvRowStride, uvPixelStride,
+				width, height, radius);
+	}
+
+	/**
+	 * Convert a (blurred) NV21 frame to a bitmap. Only call this when an ARGB
+	 * result is actually needed.
+	 */
+	public static Bitmap nv21ToBitmap(byte[] nv21, int width, int height) {
+		int[] pixels = new int[width * height];
+		YuvBlurProcess.nv21ToArgb(nv21, width, height, pixels);
+		return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * Stack blur an image too large to be held in memory, strip by strip.
+	 * Memory used is proportional to width * (radius + stripHeight).
+	 * Source and sink are closed when done.
+	 * @param source where rows are read from, e.g. a {@link RegionDecoderStripSource}
+	 * @param sink where blurred rows are written to, e.g. a {@link RawStripSink}
+	 * @param stripHeight number of rows read at a time
+	 */
+	public static void processStreaming(StripSource source, StripSink sink, int radius, int stripHeight) throws IOException {
+		try {
+			new StreamingBlurProcess(stripHeight, BlurExecutor.getDefault()).blur(source, sink, radius);
+		} finally {
+			try {
+				source.close();
+			} finally {
+				sink.close();
+			}
+		}
+	}
+
+	public static void processStreaming(StripSource source, StripSink sink, int radius) throws IOException {
+		processStreaming(source, sink, radius, StreamingBlurProcess.DEFAULT_STRIP_HEIGHT);
+	}
+
+	/**
+	 * Stack blur a raw ARGB file into another one, both accessed through
+	 * memory mapping. No image is decoded or encoded on the way, and only a
+	 * strip of rows at a time is copied to the heap to be blurred.
+	 * @see MappedPixelFile
+	 */
+	public static void processRawFile(File in, File out, int width, int height, int radius) throws IOException {
+		MappedPixelFile source = MappedPixelFile.open(in, width, height);
+		MappedPixelFile sink;
+		try {
+			sink = MappedPixelFile.create(out, width, height);
+		} catch (IOException e) {
+			source.close();
+			throw e;
+		}
+		processStreaming(source, sink, radius);
+	}
+
+	/**
+	 * Save the last result as raw ARGB pixels (see {@link MappedPixelFile}),
+	 * skipping the PNG encoding of {@link #saveIntoFile} when the output is
+	 * only going to be read back as pixels.
+	 */
+	public void saveRawIntoFile(String path) throws IOException {
+		BitmapSaver.writeRaw(_result, new File(path));
 	}
 
 }
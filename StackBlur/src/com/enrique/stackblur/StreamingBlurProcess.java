@@ -0,0 +1,318 @@
+package com.enrique.stackblur;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Stack blur of an image streamed through in horizontal strips.
+ * <p/>
+ * Each strip is read from a {@link StripSource} and blurred horizontally.
+ * The vertical pass only keeps the (2 * radius + 1) rows of its stack, so
+ * memory is O(width * (radius + strip height)) instead of O(width * height),
+ * and output strips are written to the {@link StripSink} as soon as they are
+ * final. The result is the same as {@link StackJavaBlurProcess}.
+ */
+class StreamingBlurProcess {
+
+	static final int DEFAULT_STRIP_HEIGHT = 64;
+
+	private final int _stripHeight;
+	private final BlurExecutor _executor;
+
+	StreamingBlurProcess(int stripHeight, BlurExecutor executor) {
+		_stripHeight = stripHeight;
+		_executor = executor;
+	}
+
+	void blur(StripSource source, StripSink sink, int radius) throws IOException {
+		int w = source.getWidth();
+		int h = source.getHeight();
+		if (radius > 254) radius = 254;
+		if (radius < 1) {
+			copy(source, sink, w, h);
+			return;
+		}
+		int hm = h - 1;
+		// the first strip must hold every row of the initial stack
+		int stripHeight = Math.max(_stripHeight, radius + 1);
+		int[] strip = new int[stripHeight * w];
+		int[] out = new int[(stripHeight + radius + 1) * w];
+		VerticalState state = new VerticalState(w, radius);
+
+		int cores = _executor.getParallelism();
+		int top = 0;
+		int y = 0;
+		int yp = -1;
+		while (y < h) {
+			int count = Math.min(stripHeight, h - top);
+			source.readRows(top, count, strip);
+			horizontal(strip, w, count, radius, cores);
+
+			// number of output rows whose input rows are all in this strip
+			int bottom = top + count;
+			int n;
+			boolean first = yp < 0;
+			if (first) yp = Math.min(radius, hm);
+			if (bottom >= h)
+				n = h - y;
+			else
+				n = (bottom - 1) - yp;
+
+			ArrayList<VerticalTask> vertical = new ArrayList<VerticalTask>(cores);
+			for (int i = 0; i < cores; i++) {
+				vertical.add(new VerticalTask(state, strip, top, out, w, h, first, yp, n,
+						i * w / cores, (i + 1) * w / cores));
+			}
+			try {
+				_executor.invokeAll(vertical);
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted");
+			}
+			state.sp = (state.sp + n) % state.div;
+			yp = Math.min(yp + n, hm);
+
+			if (n > 0)
+				sink.writeRows(y, n, out);
+			y += n;
+			top = bottom;
+		}
+	}
+
+	private static void copy(StripSource source, StripSink sink, int w, int h) throws IOException {
+		int[] strip = new int[DEFAULT_STRIP_HEIGHT * w];
+		for (int top = 0; top < h; top += DEFAULT_STRIP_HEIGHT) {
+			int count = Math.min(DEFAULT_STRIP_HEIGHT, h - top);
+			source.readRows(top, count, strip);
+			sink.writeRows(top, count, strip);
+		}
+	}
+
+	private void horizontal(int[] strip, int w, int count, int radius, int cores) throws IOException {
+		ArrayList<HorizontalTask> horizontal = new ArrayList<HorizontalTask>(cores);
+		for (int i = 0; i < cores; i++) {
+			horizontal.add(new HorizontalTask(strip, w, count, radius, cores, i));
+		}
+		try {
+			_executor.invokeAll(horizontal);
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted");
+		}
+	}
+
+	/**
+	 * Per column sums and the rolling stack of rows of the vertical pass.
+	 */
+	private static class VerticalState {
+		final int radius;
+		final int div;
+		final int mul_sum;
+		final byte shr_sum;
+		final int[] stack;
+		final int[] sum_a, sum_r, sum_g, sum_b;
+		final int[] sum_in_a, sum_in_r, sum_in_g, sum_in_b;
+		final int[] sum_out_a, sum_out_r, sum_out_g, sum_out_b;
+		int sp;
+
+		VerticalState(int w, int radius) {
+			this.radius = radius;
+			div = radius * 2 + 1;
+			mul_sum = StackBlurKernel.stackblur_mul[radius];
+			shr_sum = StackBlurKernel.stackblur_shr[radius];
+			stack = new int[div * w];
+			sum_a = new int[w];
+			sum_r = new int[w];
+			sum_g = new int[w];
+			sum_b = new int[w];
+			sum_in_a = new int[w];
+			sum_in_r = new int[w];
+			sum_in_g = new int[w];
+			sum_in_b = new int[w];
+			sum_out_a = new int[w];
+			sum_out_r = new int[w];
+			sum_out_g = new int[w];
+			sum_out_b = new int[w];
+			sp = radius;
+		}
+	}
+
+	private static class HorizontalTask implements Callable<Void> {
+		private final int[] _strip;
+		private final int _w;
+		private final int _h;
+		private final int _radius;
+		private final int _totalCores;
+		private final int _coreIndex;
+
+		HorizontalTask(int[] strip, int w, int h, int radius, int totalCores, int coreIndex) {
+			_strip = strip;
+			_w = w;
+			_h = h;
+			_radius = radius;
+			_totalCores = totalCores;
+			_coreIndex = coreIndex;
+		}
+
+		@Override public Void call() throws Exception {
+			StackBlurKernel.blurIteration(_strip, _w, _h, _radius, _totalCores, _coreIndex, 1);
+			return null;
+		}
+	}
+
+	/**
+	 * Advances the vertical stack blur of columns [minX, maxX) by {@code n} rows.
+	 */
+	private static class VerticalTask implements Callable<Void> {
+		private final VerticalState _s;
+		private final int[] _strip;
+		private final int _top;
+		private final int[] _out;
+		private final int _w;
+		private final int _hm;
+		private final boolean _first;
+		private final int _yp;
+		private final int _n;
+		private final int _minX;
+		private final int _maxX;
+
+		VerticalTask(VerticalState state, int[] strip, int top, int[] out, int w, int h,
+		             boolean first, int yp, int n, int minX, int maxX) {
+			_s = state;
+			_strip = strip;
+			_top = top;
+			_out = out;
+			_w = w;
+			_hm = h - 1;
+			_first = first;
+			_yp = yp;
+			_n = n;
+			_minX = minX;
+			_maxX = maxX;
+		}
+
+		@Override public Void call() throws Exception {
+			VerticalState s = _s;
+			int w = _w;
+			int radius = s.radius;
+			int div = s.div;
+			int[] stack = s.stack;
+
+			for (int x = _minX; x < _maxX; x++) {
+				int sum_a, sum_r, sum_g, sum_b, sum_in_a, sum_in_r, sum_in_g, sum_in_b,
+						sum_out_a, sum_out_r, sum_out_g, sum_out_b;
+				if (_first) {
+					sum_a = sum_r = sum_g = sum_b =
+							sum_in_a = sum_in_r = sum_in_g = sum_in_b =
+									sum_out_a = sum_out_r = sum_out_g = sum_out_b = 0;
+					int p = _strip[x];
+					for (int i = 0; i <= radius; i++) {
+						stack[i * w + x] = p;
+						sum_a += ((p >>> 24) & 0xff) * (i + 1);
+						sum_r += ((p >>> 16) & 0xff) * (i + 1);
+						sum_g += ((p >>> 8) & 0xff) * (i + 1);
+						sum_b += (p & 0xff) * (i + 1);
+						sum_out_a += ((p >>> 24) & 0xff);
+						sum_out_r += ((p >>> 16) & 0xff);
+						sum_out_g += ((p >>> 8) & 0xff);
+						sum_out_b += (p & 0xff);
+					}
+					for (int i = 1; i <= radius; i++) {
+						p = _strip[Math.min(i, _hm) * w + x];
+						stack[(i + radius) * w + x] = p;
+						sum_a += ((p >>> 24) & 0xff) * (radius + 1 - i);
+						sum_r += ((p >>> 16) & 0xff) * (radius + 1 - i);
+						sum_g += ((p >>> 8) & 0xff) * (radius + 1 - i);
+						sum_b += (p & 0xff) * (radius + 1 - i);
+						sum_in_a += ((p >>> 24) & 0xff);
+						sum_in_r += ((p >>> 16) & 0xff);
+						sum_in_g += ((p >>> 8) & 0xff);
+						sum_in_b += (p & 0xff);
+					}
+				} else {
+					sum_a = s.sum_a[x];
+					sum_r = s.sum_r[x];
+					sum_g = s.sum_g[x];
+					sum_b = s.sum_b[x];
+					sum_in_a = s.sum_in_a[x];
+					sum_in_r = s.sum_in_r[x];
+					sum_in_g = s.sum_in_g[x];
+					sum_in_b = s.sum_in_b[x];
+					sum_out_a = s.sum_out_a[x];
+					sum_out_r = s.sum_out_r[x];
+					sum_out_g = s.sum_out_g[x];
+					sum_out_b = s.sum_out_b[x];
+				}
+
+				int sp = s.sp;
+				int yp = _yp;
+				int dst_i = x;
+				for (int y = 0; y < _n; y++) {
+					_out[dst_i] = (int)
+							(((((long) sum_a * s.mul_sum) >>> s.shr_sum) & 0xff) << 24 |
+									((((long) sum_r * s.mul_sum) >>> s.shr_sum) & 0xff) << 16 |
+									((((long) sum_g * s.mul_sum) >>> s.shr_sum) & 0xff) << 8 |
+									((((long) sum_b * s.mul_sum) >>> s.shr_sum) & 0xff));
+					dst_i += w;
+
+					sum_a -= sum_out_a;
+					sum_r -= sum_out_r;
+					sum_g -= sum_out_g;
+					sum_b -= sum_out_b;
+
+					int stack_start = sp + div - radius;
+					if (stack_start >= div) stack_start -= div;
+					int stack_i = stack_start * w + x;
+
+					int p = stack[stack_i];
+					sum_out_a -= ((p >>> 24) & 0xff);
+					sum_out_r -= ((p >>> 16) & 0xff);
+					sum_out_g -= ((p >>> 8) & 0xff);
+					sum_out_b -= (p & 0xff);
+
+					if (yp < _hm) ++yp;
+
+					// rows before this strip are never needed again, except the
+					// last row of the image which stays in the final strip
+					p = _strip[(yp - _top) * w + x];
+					stack[stack_i] = p;
+
+					sum_in_a += ((p >>> 24) & 0xff);
+					sum_in_r += ((p >>> 16) & 0xff);
+					sum_in_g += ((p >>> 8) & 0xff);
+					sum_in_b += (p & 0xff);
+					sum_a += sum_in_a;
+					sum_r += sum_in_r;
+					sum_g += sum_in_g;
+					sum_b += sum_in_b;
+
+					++sp;
+					if (sp >= div) sp = 0;
+					p = stack[sp * w + x];
+
+					sum_out_a += ((p >>> 24) & 0xff);
+					sum_out_r += ((p >>> 16) & 0xff);
+					sum_out_g += ((p >>> 8) & 0xff);
+					sum_out_b += (p & 0xff);
+					sum_in_a -= ((p >>> 24) & 0xff);
+					sum_in_r -= ((p >>> 16) & 0xff);
+					sum_in_g -= ((p >>> 8) & 0xff);
+					sum_in_b -= (p & 0xff);
+				}
+
+				s.sum_a[x] = sum_a;
+				s.sum_r[x] = sum_r;
+				s.sum_g[x] = sum_g;
+				s.sum_b[x] = sum_b;
+				s.sum_in_a[x] = sum_in_a;
+				s.sum_in_r[x] = sum_in_r;
+				s.sum_in_g[x] = sum_in_g;
+				s.sum_in_b[x] = sum_in_b;
+				s.sum_out_a[x] = sum_out_a;
+				s.sum_out_r[x] = sum_out_r;
+				s.sum_out_g[x] = sum_out_g;
+				s.sum_out_b[x] = sum_out_b;
+			}
+			return null;
+		}
+	}
+}
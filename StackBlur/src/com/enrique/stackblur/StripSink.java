@@ -0,0 +1,17 @@
+package com.enrique.stackblur;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of ARGB pixels written as horizontal strips.
+ * @see StreamingBlurProcess
+ */
+public interface StripSink extends Closeable {
+	/**
+	 * Write {@code count} full rows starting at row {@code top}.
+	 * Rows are always written in increasing order.
+	 * @param pixels {@code count * width} ARGB values
+	 */
+	public void writeRows(int top, int count, int[] pixels) throws IOException;
+}
@@ -0,0 +1,22 @@
+package com.enrique.stackblur;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Source of ARGB pixels read as horizontal strips, for images too large to be
+ * loaded at once.
+ * @see StreamingBlurProcess
+ */
+public interface StripSource extends Closeable {
+	public int getWidth();
+
+	public int getHeight();
+
+	/**
+	 * Read {@code count} full rows starting at row {@code top}.
+	 * Rows are always requested in increasing order.
+	 * @param pixels destination, {@code count * getWidth()} ARGB values
+	 */
+	public void readRows(int top, int count, int[] pixels) throws IOException;
+}
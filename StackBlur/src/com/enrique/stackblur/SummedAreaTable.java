@@ -0,0 +1,197 @@
+package com.enrique.stackblur;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Integral image of an ARGB image: the sum of any box of pixels, whatever its
+ * size, in four lookups.
+ * <p/>
+ * Channels are summed two per long, in 32 bit lanes: alpha with green and red
+ * with blue. A lane holds up to 255 * {@link #MAX_PIXELS}, and sums and
+ * differences of boxes are exact modulo 2^64, so a lane never borrows from
+ * the other one in a box query.
+ * <p/>
+ * The table is built in parallel with a two level scan over blocks of rows:
+ * every block sums its rows on its own, the last row of each block is added
+ * up into an offset for the next blocks, then every block adds its offset.
+ */
+final class SummedAreaTable {
+
+	/**
+	 * Largest image (about 16.8 megapixels) whose channel sums fit in 32 bits
+	 */
+	static final long MAX_PIXELS = 0xffffffffL / 255;
+
+	private static final long LOW_LANE = 0xffffffffL;
+
+	private final int _width;
+	private final int _height;
+	/**
+	 * Row length of the tables: one more than the image, column 0 and row 0 are zeros
+	 */
+	private final int _stride;
+	private final long[] _ag;
+	private final long[] _rb;
+
+	SummedAreaTable(int width, int height) {
+		if ((long) width * height > MAX_PIXELS)
+			throw new IllegalArgumentException(width + "x" + height + " is larger than " + MAX_PIXELS + " pixels");
+		_width = width;
+		_height = height;
+		_stride = width + 1;
+		_ag = new long[_stride * (height + 1)];
+		_rb = new long[_stride * (height + 1)];
+	}
+
+	int getWidth() {
+		return _width;
+	}
+
+	int getHeight() {
+		return _height;
+	}
+
+	/**
+	 * @return bytes held by the table
+	 */
+	long getByteCount() {
+		return 16L * _ag.length;
+	}
+
+	/**
+	 * Fill the table with the sums of {@code pixels}, an image of the size of the table.
+	 */
+	void build(int[] pixels, BlurExecutor executor, BlurMetrics metrics) throws InterruptedException {
+		int blocks = Math.max(1, Math.min(executor.getParallelism(), _height));
+		ArrayList<BuildTask> scans = new ArrayList<BuildTask>(blocks);
+		ArrayList<BuildTask> offsets = new ArrayList<BuildTask>(blocks);
+		for (int i = 0; i < blocks; i++) {
+			scans.add(new BuildTask(this, pixels, i * _height / blocks, (i + 1) * _height / blocks, false, metrics));
+			if (i > 0)
+				offsets.add(new BuildTask(this, pixels, i * _height / blocks, (i + 1) * _height / blocks, true, metrics));
+		}
+		executor.invokeAll(scans);
+
+		// the last row of each block becomes the running total of all the rows above it
+		for (int i = 1; i < blocks - 1; i++) {
+			int previousEnd = i * _height / blocks;
+			int end = (i + 1) * _height / blocks;
+			for (int x = 1; x <= _width; x++) {
+				_ag[end * _stride + x] += _ag[previousEnd * _stride + x];
+				_rb[end * _stride + x] += _rb[previousEnd * _stride + x];
+			}
+		}
+		executor.invokeAll(offsets);
+	}
+
+	/**
+	 * Sum rows [first, last) of the block, cumulatively from the block's first row.
+	 */
+	private void scanBlock(int[] pixels, int first, int last) {
+		for (int y = first; y < last; y++) {
+			long ag = 0, rb = 0;
+			int si = y * _width;
+			int ti = (y + 1) * _stride + 1;
+			boolean top = y == first;
+			for (int x = 0; x < _width; x++, si++, ti++) {
+				int p = pixels[si];
+				ag += ((long) (p >>> 24) << 32) | ((p >>> 8) & 0xff);
+				rb += ((long) ((p >>> 16) & 0xff) << 32) | (p & 0xff);
+				_ag[ti] = top ? ag : ag + _ag[ti - _stride];
+				_rb[ti] = top ? rb : rb + _rb[ti - _stride];
+			}
+		}
+	}
+
+	/**
+	 * Add the total of the rows above the block to its rows, except the last
+	 * one which already had it added.
+	 */
+	private void offsetBlock(int first, int last) {
+		int oi = first * _stride;
+		for (int y = first; y < last - 1; y++) {
+			int ti = (y + 1) * _stride + 1;
+			for (int x = 1; x <= _width; x++, ti++) {
+				_ag[ti] += _ag[oi + x];
+				_rb[ti] += _rb[oi + x];
+			}
+		}
+		if (last == _height) {
+			// the last block was not part of the running totals
+			int ti = last * _stride + 1;
+			for (int x = 1; x <= _width; x++, ti++) {
+				_ag[ti] += _ag[oi + x];
+				_rb[ti] += _rb[oi + x];
+			}
+		}
+	}
+
+	/**
+	 * @return the ARGB average of the box of half size {@code radius} around
+	 * (x, y), clipped to the image. A fractional radius blends the averages of
+	 * the two nearest box sizes, so the blur changes smoothly with the radius.
+	 */
+	int boxAverage(int x, int y, float radius) {
+		int r = (int) radius;
+		float f = radius - r;
+
+		int x0 = Math.max(0, x - r), x1 = Math.min(_width, x + r + 1);
+		int y0 = Math.max(0, y - r), y1 = Math.min(_height, y + r + 1);
+		float area = (x1 - x0) * (y1 - y0);
+		long ag = sum(_ag, x0, y0, x1, y1), rb = sum(_rb, x0, y0, x1, y1);
+		float a = (ag >>> 32) / area, g = (ag & LOW_LANE) / area;
+		float red = (rb >>> 32) / area, b = (rb & LOW_LANE) / area;
+
+		if (f > 0) {
+			x0 = Math.max(0, x - r - 1);
+			x1 = Math.min(_width, x + r + 2);
+			y0 = Math.max(0, y - r - 1);
+			y1 = Math.min(_height, y + r + 2);
+			area = (x1 - x0) * (y1 - y0);
+			ag = sum(_ag, x0, y0, x1, y1);
+			rb = sum(_rb, x0, y0, x1, y1);
+			a += f * ((ag >>> 32) / area - a);
+			g += f * ((ag & LOW_LANE) / area - g);
+			red += f * ((rb >>> 32) / area - red);
+			b += f * ((rb & LOW_LANE) / area - b);
+		}
+		return ((int) (a + 0.5f) << 24) | ((int) (red + 0.5f) << 16) | ((int) (g + 0.5f) << 8) | (int) (b + 0.5f);
+	}
+
+	/**
+	 * @return the packed channel sums of the pixels in [x0, x1) x [y0, y1)
+	 */
+	private long sum(long[] table, int x0, int y0, int x1, int y1) {
+		return table[y1 * _stride + x1] - table[y0 * _stride + x1] - table[y1 * _stride + x0] + table[y0 * _stride + x0];
+	}
+
+	private static class BuildTask implements Callable<Void> {
+		private final SummedAreaTable _table;
+		private final int[] _pixels;
+		private final int _first;
+		private final int _last;
+		private final boolean _offset;
+		private final BlurMetrics _metrics;
+
+		BuildTask(SummedAreaTable table, int[] pixels, int first, int last, boolean offset, BlurMetrics metrics) {
+			_table = table;
+			_pixels = pixels;
+			_first = first;
+			_last = last;
+			_offset = offset;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			if (_offset)
+				_table.offsetBlock(_first, _last);
+			else
+				_table.scanBlock(_pixels, _first, _last);
+			_metrics.addBusy(mark);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.enrique.stackblur;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Blur whose radius changes from pixel to pixel, for depth of field and
+ * tilt-shift effects.
+ * <p/>
+ * Every pixel becomes the average of the box around it, of half size
+ * {@code radius * weight}, the weight coming from a {@link RadiusMap}. The
+ * boxes are read from a {@link SummedAreaTable}, so a pixel costs the same
+ * for any radius and no blur is run per radius. Several passes give a
+ * smoother kernel for the same spread: each pass uses the radius divided by
+ * the square root of the number of passes.
+ */
+class VariableBlurProcess implements BlurProcess {
+
+	static final int DEFAULT_PASSES = 2;
+
+	private final RadiusMap _map;
+	private final int _passes;
+	private final BlurExecutor _executor;
+	private BlurMetrics.Listener _metricsListener;
+
+	VariableBlurProcess(RadiusMap map) {
+		this(map, DEFAULT_PASSES, BlurExecutor.getDefault());
+	}
+
+	VariableBlurProcess(RadiusMap map, int passes, BlurExecutor executor) {
+		_map = map;
+		_passes = Math.max(1, passes);
+		_executor = executor;
+	}
+
+	@Override
+	public void setMetricsListener(BlurMetrics.Listener listener) {
+		_metricsListener = listener;
+	}
+
+	/**
+	 * @param radius half size of the box of the pixels of weight 1, in a single pass
+	 */
+	@Override
+	public Bitmap blur(Bitmap original, float radius) {
+		int w = original.getWidth();
+		int h = original.getHeight();
+		int cores = _executor.getParallelism();
+		BlurMetrics metrics = BlurMetrics.begin(_metricsListener, "VariableBlurProcess", w, h, radius, cores);
+		long mark = metrics.mark();
+		int[] src = PixelArrayPool.acquire(w * h, metrics);
+		int[] dst = PixelArrayPool.acquire(w * h, metrics);
+		original.getPixels(src, 0, w, 0, 0, w, h);
+		mark = metrics.lap(BlurMetrics.Stage.GET_PIXELS, mark);
+
+		SummedAreaTable table = new SummedAreaTable(w, h);
+		metrics.addAllocated(table.getByteCount());
+		float passRadius = radius / (float) Math.sqrt(_passes);
+		try {
+			for (int pass = 0; pass < _passes; pass++) {
+				table.build(src, _executor, metrics);
+				mark = metrics.lap(BlurMetrics.Stage.SUMMED_AREA_TABLE, mark);
+
+				ArrayList<QueryTask> queries = new ArrayList<QueryTask>(cores);
+				for (int i = 0; i < cores; i++)
+					queries.add(new QueryTask(table, _map, src, dst, passRadius, i * h / cores, (i + 1) * h / cores, metrics));
+				_executor.invokeAll(queries);
+				mark = metrics.lap(BlurMetrics.Stage.BOX_QUERIES, mark);
+
+				int[] swap = src;
+				src = dst;
+				dst = swap;
+			}
+		} catch (InterruptedException e) {
+			// stripes may still be running: the arrays can't go back to the pool
+			return null;
+		}
+
+		Bitmap blurred = Bitmap.createBitmap(src, 0, w, w, h, Bitmap.Config.ARGB_8888);
+		PixelArrayPool.release(src);
+		PixelArrayPool.release(dst);
+		metrics.addAllocated(4L * w * h);
+		metrics.lap(BlurMetrics.Stage.CREATE_BITMAP, mark);
+		metrics.end();
+		return blurred;
+	}
+
+	private static class QueryTask implements Callable<Void> {
+		private final SummedAreaTable _table;
+		private final RadiusMap _map;
+		private final int[] _src;
+		private final int[] _dst;
+		private final float _radius;
+		private final int _firstRow;
+		private final int _lastRow;
+		private final BlurMetrics _metrics;
+
+		QueryTask(SummedAreaTable table, RadiusMap map, int[] src, int[] dst, float radius,
+		          int firstRow, int lastRow, BlurMetrics metrics) {
+			_table = table;
+			_map = map;
+			_src = src;
+			_dst = dst;
+			_radius = radius;
+			_firstRow = firstRow;
+			_lastRow = lastRow;
+			_metrics = metrics;
+		}
+
+		@Override
+		public Void call() throws Exception {
+			long mark = _metrics.mark();
+			int w = _table.getWidth();
+			int h = _table.getHeight();
+			for (int y = _firstRow; y < _lastRow; y++) {
+				for (int x = 0, i = y * w; x < w; x++, i++) {
+					float r = _radius * _map.weightAt(x, y, w, h);
+					_dst[i] = r > 0 ? _table.boxAverage(x, y, r) : _src[i];
+				}
+			}
+			_metrics.addBusy(mark);
+			return null;
+		}
+	}
+}
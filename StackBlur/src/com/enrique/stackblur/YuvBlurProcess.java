@@ -0,0 +1,245 @@
+package com.enrique.stackblur;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+/**
+ * Stack blur working directly on YUV 4:2:0 planes (NV21, NV12, I420 or the
+ * planes of a YUV_420_888 image), so camera frames don't have to be converted
+ * to ARGB before blurring.
+ * <p/>
+ * The Y plane is blurred with the requested radius, the subsampled chroma
+ * planes with half of it, which gives the same visual extent once the frame
+ * is upsampled for display. Every plane is blurred in place; conversion to
+ * ARGB only happens through {@link #nv21ToArgb}.
+ */
+class YuvBlurProcess {
+
+	private final BlurExecutor _executor;
+
+	YuvBlurProcess(BlurExecutor executor) {
+		_executor = executor;
+	}
+
+	/**
+	 * Chroma planes are subsampled by two in both directions.
+	 */
+	static int chromaRadius(int radius) {
+		return (radius + 1) / 2;
+	}
+
+	/**
+	 * NV21 rows of VU pairs are as long as the Y rows, which only holds for
+	 * even sizes
+	 */
+	static void checkNV21Size(int w, int h) {
+		if (w <= 0 || h <= 0 || (w & 1) != 0 || (h & 1) != 0)
+			throw new IllegalArgumentException("NV21 frames have even sizes, not " + w + "x" + h);
+	}
+
+	/**
+	 * Blur a NV21 frame (Y plane followed by interleaved VU) in place.
+	 * @return false if interrupted, the frame is then only partly blurred and
+	 * stripes may still be writing to it
+	 */
+	boolean blurNV21(byte[] nv21, int w, int h, int radius) {
+		checkNV21Size(w, h);
+		int cw = w / 2;
+		int ch = h / 2;
+		int uvOffset = w * h;
+		int cradius = chromaRadius(radius);
+
+		ArrayList<PlaneTask> horizontal = new ArrayList<PlaneTask>();
+		ArrayList<PlaneTask> vertical = new ArrayList<PlaneTask>();
+		addPlane(horizontal, vertical, nv21, 0, w, h, w, 1, radius);
+		addPlane(horizontal, vertical, nv21, uvOffset, cw, ch, w, 2, cradius);
+		addPlane(horizontal, vertical, nv21, uvOffset + 1, cw, ch, w, 2, cradius);
+		return run(horizontal, vertical);
+	}
+
+	/**
+	 * Blur the three planes of a YUV 4:2:0 image in place, with the row and
+	 * pixel strides reported by {@code Image.Plane}. When the chroma pixel
+	 * stride is 2 the U and V arrays may be the same interleaved buffer.
+	 * @return false if interrupted, see {@link #blurNV21}
+	 */
+	boolean blurYUV420(byte[] y, int yRowStride,
+	                byte[] u, int uOffset, byte[] v, int vOffset, int uvRowStride, int uvPixelStride,
+	                int w, int h, int radius) {
+		int cw = (w + 1) / 2;
+		int ch = (h + 1) / 2;
+		int cradius = chromaRadius(radius);
+
+		ArrayList<PlaneTask> horizontal = new ArrayList<PlaneTask>();
+		ArrayList<PlaneTask> vertical = new ArrayList<PlaneTask>();
+		addPlane(horizontal, vertical, y, 0, w, h, yRowStride, 1, radius);
+		addPlane(horizontal, vertical, u, uOffset, cw, ch, uvRowStride, uvPixelStride, cradius);
+		addPlane(horizontal, vertical, v, vOffset, cw, ch, uvRowStride, uvPixelStride, cradius);
+		return run(horizontal, vertical);
+	}
+
+	private void addPlane(ArrayList<PlaneTask> horizontal, ArrayList<PlaneTask> vertical,
+	                             byte[] plane, int offset, int w, int h, int rowStride, int pixelStride, int radius) {
+		if (radius < 1 || w < 1 || h < 1)
+			return;
+		if (radius > 254)
+			radius = 254;
+		int cores = _executor.getParallelism();
+		for (int i = 0; i < cores; i++) {
+			horizontal.add(new PlaneTask(plane, offset, w, h, rowStride, pixelStride, radius, cores, i, 1));
+			vertical.add(new PlaneTask(plane, offset, w, h, rowStride, pixelStride, radius, cores, i, 2));
+		}
+	}
+
+	private boolean run(ArrayList<PlaneTask> horizontal, ArrayList<PlaneTask> vertical) {
+		try {
+			_executor.invokeAll(horizontal);
+			_executor.invokeAll(vertical);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Single channel stack blur over a strided plane.
+	 * Step 1 blurs the rows of stripe {@code core}, step 2 the columns.
+	 */
+	static void blurPlane(byte[] src, int offset, int w, int h, int rowStride, int pixelStride,
+	                      int radius, int cores, int core, int step) {
+		int div = (radius * 2) + 1;
+		int mul_sum = StackBlurKernel.stackblur_mul[radius];
+		byte shr_sum = StackBlurKernel.stackblur_shr[radius];
+		int[] stack = new int[div];
+
+		int lines, length, lineStride, stride;
+		if (step == 1) {
+			lines = h;
+			length = w;
+			lineStride = rowStride;
+			stride = pixelStride;
+		} else {
+			lines = w;
+			length = h;
+			lineStride = pixelStride;
+			stride = rowStride;
+		}
+		int lm = length - 1;
+		int minLine = core * lines / cores;
+		int maxLine = (core + 1) * lines / cores;
+
+		for (int line = minLine; line < maxLine; line++) {
+			long sum = 0, sum_in = 0, sum_out = 0;
+			int start = offset + line * lineStride;
+			int src_i = start;
+			int i;
+
+			for (i = 0; i <= radius; i++) {
+				int p = src[src_i] & 0xff;
+				stack[i] = p;
+				sum += p * (i + 1);
+				sum_out += p;
+			}
+			for (i = 1; i <= radius; i++) {
+				if (i <= lm) src_i += stride;
+				int p = src[src_i] & 0xff;
+				stack[i + radius] = p;
+				sum += p * (radius + 1 - i);
+				sum_in += p;
+			}
+
+			int sp = radius;
+			int xp = radius;
+			if (xp > lm) xp = lm;
+			src_i = start + xp * stride;
+			int dst_i = start;
+			for (int x = 0; x < length; x++) {
+				src[dst_i] = (byte) ((sum * mul_sum) >>> shr_sum);
+				dst_i += stride;
+
+				sum -= sum_out;
+
+				int stack_start = sp + div - radius;
+				if (stack_start >= div) stack_start -= div;
+				sum_out -= stack[stack_start];
+
+				if (xp < lm) {
+					src_i += stride;
+					++xp;
+				}
+
+				int p = src[src_i] & 0xff;
+				stack[stack_start] = p;
+				sum_in += p;
+				sum += sum_in;
+
+				++sp;
+				if (sp >= div) sp = 0;
+				sum_out += stack[sp];
+				sum_in -= stack[sp];
+			}
+		}
+	}
+
+	/**
+	 * Convert a NV21 frame to ARGB_8888 pixels (BT.601, video range).
+	 * Only needed when the caller wants a {@link android.graphics.Bitmap} back.
+	 */
+	static void nv21ToArgb(byte[] nv21, int w, int h, int[] out) {
+		checkNV21Size(w, h);
+		int uvOffset = w * h;
+		for (int y = 0; y < h; y++) {
+			int uvRow = uvOffset + (y >> 1) * w;
+			int o = y * w;
+			for (int x = 0; x < w; x++) {
+				int c = (nv21[o] & 0xff) - 16;
+				if (c < 0) c = 0;
+				int uv = uvRow + (x & ~1);
+				int e = (nv21[uv] & 0xff) - 128;
+				int d = (nv21[uv + 1] & 0xff) - 128;
+
+				int r = (298 * c + 409 * e + 128) >> 8;
+				int g = (298 * c - 100 * d - 208 * e + 128) >> 8;
+				int b = (298 * c + 516 * d + 128) >> 8;
+				r = r < 0 ? 0 : (r > 255 ? 255 : r);
+				g = g < 0 ? 0 : (g > 255 ? 255 : g);
+				b = b < 0 ? 0 : (b > 255 ? 255 : b);
+
+				out[o++] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	private static class PlaneTask implements Callable<Void> {
+		private final byte[] _plane;
+		private final int _offset;
+		private final int _w;
+		private final int _h;
+		private final int _rowStride;
+		private final int _pixelStride;
+		private final int _radius;
+		private final int _totalCores;
+		private final int _coreIndex;
+		private final int _round;
+
+		public PlaneTask(byte[] plane, int offset, int w, int h, int rowStride, int pixelStride,
+		                 int radius, int totalCores, int coreIndex, int round) {
+			_plane = plane;
+			_offset = offset;
+			_w = w;
+			_h = h;
+			_rowStride = rowStride;
+			_pixelStride = pixelStride;
+			_radius = radius;
+			_totalCores = totalCores;
+			_coreIndex = coreIndex;
+			_round = round;
+		}
+
+		@Override public Void call() throws Exception {
+			blurPlane(_plane, _offset, _w, _h, _rowStride, _pixelStride, _radius, _totalCores, _coreIndex, _round);
+			return null;
+		}
+	}
+}
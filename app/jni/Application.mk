@@ -1,2 +0,0 @@
-APP_ABI := all
-APP_PLATFORM :=11
\ No newline at end of file
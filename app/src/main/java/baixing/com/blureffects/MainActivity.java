@@ -3,11 +3,11 @@ package baixing.com.blureffects;
 import android.content.Intent;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.support.v7.app.AppCompatActivity;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -17,6 +17,7 @@ import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
+import com.enrique.stackblur.BitmapLoader;
 import com.enrique.stackblur.StackBlurManager;
 
 public class MainActivity extends AppCompatActivity {
@@ -35,7 +36,10 @@ public class MainActivity extends AppCompatActivity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_main);
-		_stackBlurManager = new StackBlurManager(this,R.drawable.teste);
+		StackBlurManager.loadNativeAsync();
+		// the slider starts at radius 1, so only the screen size lets the images be decoded smaller
+		DisplayMetrics screen = getResources().getDisplayMetrics();
+		_stackBlurManager = new StackBlurManager(this, R.drawable.teste, screen.widthPixels, screen.heightPixels, 1);
 		_seekBar= (SeekBar)(findViewById(R.id.blur_seekBar));
 		_seekTextView= (TextView) findViewById(R.id.blur_amount);
 		_seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
@@ -117,13 +121,16 @@ public class MainActivity extends AppCompatActivity {
 			int columnIndex = cursor.getColumnIndex(filePathColumn[0]);
 			String picturePath = cursor.getString(columnIndex);
 			cursor.close();
-			bitmap=(BitmapFactory.decodeFile(picturePath));
+			DisplayMetrics screen = getResources().getDisplayMetrics();
+			bitmap = BitmapLoader.decodeFile(picturePath, screen.widthPixels, screen.heightPixels, 1);
 			((ImageView)findViewById(R.id.image)).setImageBitmap(bitmap);
-			_stackBlurManager.setBitmap(bitmap);
+			_stackBlurManager.setBitmap(bitmap, screen.widthPixels, screen.heightPixels);
 		}
 
 	}
 	private Bitmap progressing(int radius){
+		// the slider is in screen pixels, the decoded image may be smaller or larger
+		radius = _stackBlurManager.scaleRadius(radius);
 		switch (type){
 			case R.id.button_c:
 				return  _stackBlurManager.processNatively(radius);